@@ -0,0 +1,388 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.date.DateUtil;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.opencadc.gms.GroupURI;
+import org.opencadc.inventory.InventoryUtil;
+import org.opencadc.vospace.ContainerNode;
+import org.opencadc.vospace.DataNode;
+import org.opencadc.vospace.LinkNode;
+import org.opencadc.vospace.Node;
+import org.opencadc.vospace.NodeProperty;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Bulk load of converted nodes into an empty destination using the PostgreSQL
+ * COPY protocol (CSV encoding). Rows are streamed into an unlogged staging table
+ * with no indices or constraints; the staging table is copied into the node table
+ * in a single statement by finish() so the destination is only changed if all tasks 
+ * succeed (the target containers are staged too) and a failed load can be repeated. The secondary indices of the node table are dropped for the copy and 
+ * rebuilt afterwards so they are built once instead of maintained row by row.
+ * 
+ * @author pdowler
+ */
+public class BulkNodeLoader {
+    private static final Logger log = Logger.getLogger(BulkNodeLoader.class);
+
+    // same column order as the node table in the vospace schema
+    private static final String COLUMNS = "parentID,name,nodeType,ownerID,isPublic,isLocked,"
+            + "readOnlyGroups,readWriteGroups,properties,inheritPermissions,busy,bytesUsed,"
+            + "target,storageID,lastModified,metaChecksum,id";
+    
+    private final DataSource ds;
+    private final String schema;
+    private final String nodeTable;
+    private final String stagingTable;
+    
+    public BulkNodeLoader(DataSource ds, String schema) {
+        this.ds = ds;
+        this.schema = schema;
+        this.nodeTable = schema + ".Node";
+        this.stagingTable = schema + ".Node_bulk";
+    }
+    
+    /**
+     * Check that the destination node table is empty and create a new staging table.
+     * 
+     * @throws IllegalStateException if the destination already contains nodes
+     */
+    public void init() {
+        JdbcTemplate jdbc = new JdbcTemplate(ds);
+        Integer existing = jdbc.queryForObject("SELECT count(*) FROM (SELECT id FROM " + nodeTable + " LIMIT 1) AS n", Integer.class);
+        if (existing != null && existing > 0) {
+            throw new IllegalStateException("bulk mode requires an empty destination: found nodes in " + nodeTable);
+        }
+        jdbc.execute("DROP TABLE IF EXISTS " + stagingTable);
+        jdbc.execute("CREATE UNLOGGED TABLE " + stagingTable + " (LIKE " + nodeTable + " INCLUDING DEFAULTS)");
+        log.info("bulk load staging table: " + stagingTable);
+    }
+    
+    /**
+     * Open a new COPY stream into the staging table. Each stream uses its own
+     * connection so multiple tasks can load concurrently.
+     * 
+     * @return new stream
+     * @throws SQLException failure to start COPY
+     */
+    public CopyStream open() throws SQLException {
+        return new CopyStream();
+    }
+    
+    /**
+     * Copy the staging table into the node table and drop the staging table.
+     * 
+     * @return number of nodes loaded
+     */
+    public long finish() {
+        JdbcTemplate jdbc = new JdbcTemplate(ds);
+        long t1 = System.currentTimeMillis();
+        // secondary indices: constraint indices (primary key, unique) are kept
+        String isql = "SELECT i.relname, pg_get_indexdef(i.oid) FROM pg_index x"
+                + " JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class t ON t.oid = x.indrelid"
+                + " JOIN pg_namespace n ON n.oid = t.relnamespace"
+                + " WHERE n.nspname = ? AND t.relname = 'node'"
+                + " AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = x.indexrelid)";
+        List<String[]> indices = jdbc.query(isql, new Object[] { schema.toLowerCase() }, 
+            (rs, i) -> new String[] { rs.getString(1), rs.getString(2) });
+        for (String[] idx : indices) {
+            log.info("bulk load: drop index " + idx[0]);
+            jdbc.execute("DROP INDEX " + schema + "." + idx[0]);
+        }
+        int num;
+        try {
+            log.info("bulk load: copy " + stagingTable + " -> " + nodeTable + " ...");
+            num = jdbc.update("INSERT INTO " + nodeTable + " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM " + stagingTable);
+        } finally {
+            for (String[] idx : indices) {
+                long t2 = System.currentTimeMillis();
+                jdbc.execute(idx[1]);
+                log.info("bulk load: create index " + idx[0] + " " + (System.currentTimeMillis() - t2) + " ms");
+            }
+        }
+        jdbc.execute("DROP TABLE " + stagingTable);
+        jdbc.execute("ANALYZE " + nodeTable);
+        long dt = System.currentTimeMillis() - t1;
+        log.info("bulk load: copied " + num + " nodes in " + dt + " ms");
+        return num;
+    }
+    
+    /**
+     * A single COPY operation on a dedicated connection.
+     */
+    public class CopyStream implements AutoCloseable {
+        private final Connection con;
+        private final CopyIn copy;
+        private final MessageDigest digest;
+        private final DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
+        private final StringBuilder sb = new StringBuilder();
+        private long numRows = 0L;
+        
+        private CopyStream() throws SQLException {
+            try {
+                this.digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException("BUG: failed to create MD5 digest", ex);
+            }
+            this.con = ds.getConnection();
+            try {
+                PGConnection pgc = con.unwrap(PGConnection.class);
+                String sql = "COPY " + stagingTable + " (" + COLUMNS + ") FROM STDIN WITH (FORMAT csv)";
+                log.debug("SQL: " + sql);
+                this.copy = pgc.getCopyAPI().copyIn(sql);
+            } catch (SQLException ex) {
+                con.close();
+                throw ex;
+            }
+        }
+        
+        /**
+         * Write a batch of converted nodes to the COPY stream.
+         * 
+         * @param nodes converted nodes
+         * @throws SQLException failure to write
+         */
+        public void write(List<Node> nodes) throws SQLException {
+            sb.setLength(0);
+            for (Node n : nodes) {
+                appendRow(n);
+            }
+            byte[] buf = sb.toString().getBytes(StandardCharsets.UTF_8);
+            copy.writeToCopy(buf, 0, buf.length);
+            numRows += nodes.size();
+        }
+
+        /**
+         * Abort the COPY after a failure: rows written to this stream are discarded.
+         */
+        public void cancel() {
+            try {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                    log.debug("COPY cancelled: " + numRows + " rows discarded");
+                }
+            } catch (SQLException ex) {
+                log.debug("cancel after failure: " + ex);
+            } finally {
+                try {
+                    con.close();
+                } catch (SQLException ex) {
+                    log.debug("close after failure: " + ex);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (copy.isActive()) {
+                    long num = copy.endCopy();
+                    log.debug("COPY complete: " + num + " rows");
+                }
+            } finally {
+                con.close();
+            }
+        }
+        
+        public long getNumRows() {
+            return numRows;
+        }
+        
+        // same values that NodeDAO would persist for the node
+        private void appendRow(Node n) {
+            if (n.getLastModified() == null) {
+                InventoryUtil.assignLastModified(n, new Date());
+            }
+            digest.reset();
+            URI mcs = n.computeMetaChecksum(digest);
+            InventoryUtil.assignMetaChecksum(n, mcs);
+            
+            Boolean inheritPermissions = null;
+            Boolean busy = null;
+            Long bytesUsed = null;
+            URI target = null;
+            URI storageID = null;
+            if (n instanceof ContainerNode) {
+                inheritPermissions = ((ContainerNode) n).inheritPermissions;
+            } else if (n instanceof DataNode) {
+                DataNode dn = (DataNode) n;
+                busy = dn.busy;
+                bytesUsed = dn.bytesUsed;
+                storageID = dn.storageID;
+            } else if (n instanceof LinkNode) {
+                target = ((LinkNode) n).getTarget();
+            }
+            
+            appendValue(sb, n.parentID);
+            appendValue(sb, n.getName());
+            appendValue(sb, n.getClass().getSimpleName().substring(0, 1));
+            appendValue(sb, n.ownerID);
+            appendValue(sb, n.isPublic);
+            appendValue(sb, n.isLocked);
+            appendValue(sb, toGroupList(n.getReadOnlyGroup()));
+            appendValue(sb, toGroupList(n.getReadWriteGroup()));
+            appendValue(sb, toArrayLiteral(n.getProperties()));
+            appendValue(sb, inheritPermissions);
+            appendValue(sb, busy);
+            appendValue(sb, bytesUsed);
+            appendValue(sb, target);
+            appendValue(sb, storageID);
+            appendValue(sb, df.format(n.getLastModified()));
+            appendValue(sb, n.getMetaChecksum());
+            sb.append(n.getID());
+            sb.append('\n');
+        }
+    }
+    
+    // CSV field and separator: unquoted empty is NULL, everything else quoted
+    static void appendValue(StringBuilder sb, Object val) {
+        if (val != null) {
+            String s = val.toString();
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"') {
+                    sb.append('"');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+        sb.append(',');
+    }
+    
+    // space separated list
+    static String toGroupList(Set<GroupURI> groups) {
+        if (groups.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        Iterator<GroupURI> i = groups.iterator();
+        while (i.hasNext()) {
+            sb.append(i.next().getURI().toASCIIString());
+            if (i.hasNext()) {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+    
+    // text[][] literal: {{"key","value"},...}
+    static String toArrayLiteral(Set<NodeProperty> props) {
+        if (props.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        Iterator<NodeProperty> i = props.iterator();
+        while (i.hasNext()) {
+            NodeProperty np = i.next();
+            sb.append('{');
+            appendArrayElement(sb, np.getKey().toASCIIString());
+            sb.append(',');
+            appendArrayElement(sb, np.getValue());
+            sb.append('}');
+            if (i.hasNext()) {
+                sb.append(',');
+            }
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+    
+    private static void appendArrayElement(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("NULL");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,166 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * Record of nodes that failed to convert or write. Each line has the source node URI and
+ * the failure separated by a tab; the file is appended to so that multiple runs (and all
+ * tasks in a run) share one record. Nodes recorded here are skipped by the migration
+ * and can be re-processed in retry mode.
+ * 
+ * @author pdowler
+ */
+public class DeadLetterFile {
+    private static final Logger log = Logger.getLogger(DeadLetterFile.class);
+
+    private final File file;
+    private PrintWriter out;
+    private int count = 0;
+    
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+    
+    /**
+     * Record a failed node.
+     * 
+     * @param uri source node URI
+     * @param ex the failure
+     */
+    public synchronized void add(URI uri, Exception ex) {
+        log.warn("dead letter: " + uri + " " + ex);
+        try {
+            if (out == null) {
+                this.out = new PrintWriter(new FileWriter(file, true));
+            }
+            String msg = String.valueOf(ex.getMessage()).replaceAll("\\s+", " ");
+            out.println(uri.toASCIIString() + "\t" + ex.getClass().getName() + ": " + msg);
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("write failed");
+            }
+            count++;
+        } catch (IOException ioex) {
+            throw new RuntimeException("failed to record dead letter " + uri + " in " + file, ioex);
+        }
+    }
+    
+    /**
+     * @return number of nodes recorded by this instance
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public synchronized void close() {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+    
+    /**
+     * Read the distinct node URIs from a dead letter file.
+     * 
+     * @param f dead letter file
+     * @return node URIs in the order first recorded
+     * @throws IOException failure to read the file
+     */
+    public static List<URI> read(File f) throws IOException {
+        Set<URI> ret = new LinkedHashSet<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line = r.readLine();
+            while (line != null) {
+                int i = line.indexOf('\t');
+                String s = (i > 0 ? line.substring(0, i) : line).trim();
+                if (!s.isEmpty()) {
+                    ret.add(URI.create(s));
+                }
+                line = r.readLine();
+            }
+        }
+        return new ArrayList<>(ret);
+    }
+}
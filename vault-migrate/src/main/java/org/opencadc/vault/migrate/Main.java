@@ -97,6 +97,9 @@ import org.opencadc.vospace.db.InitDatabaseVOS;
  */
 public class Main {
     private static final Logger log = Logger.getLogger(Main.class);
+    
+    static final String DEST_DATASOURCE = "jdbc/nodes";
+    static final String DEST_SCHEMA = "vospace";
 
     public static void main(String[] args) {
         try {
@@ -121,11 +124,46 @@ public class Main {
             
             final boolean recursive = am.isSet("recursive");
             final List<String> nodes = am.getPositionalArgs();
-            if (recursive && nodes.isEmpty()) {
+            if (recursive && nodes.isEmpty() && !am.isSet("shard")) {
                 System.out.println("INVALID: cannot use recursive mode without specifying 1 or more top level containers");
                 usage();
                 System.exit(-1);
             }
+            if (am.isSet("skip-unchanged") && am.isSet("bulk")) {
+                System.out.println("INVALID: skip-unchanged mode cannot be used with --bulk (empty destination)");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("incremental") && am.isSet("bulk")) {
+                System.out.println("INVALID: incremental mode cannot be used with --bulk (empty destination)");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("shard") && (!recursive || am.isSet("resume") || am.isSet("bulk") || am.isSet("incremental"))) {
+                System.out.println("INVALID: shard mode requires --recursive and cannot be used with --resume, --bulk, or --incremental");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("retry-dead-letters") && am.getValue("dead-letters") == null) {
+                System.out.println("INVALID: retry-dead-letters mode requires --dead-letters=<file>");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("extract") && am.isSet("load")) {
+                System.out.println("INVALID: cannot use --extract and --load together");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("incremental") && !recursive) {
+                System.out.println("INVALID: incremental mode requires --recursive");
+                usage();
+                System.exit(-1);
+            }
+            if (am.isSet("jfr") && !MigrateEvents.Support.AVAILABLE) {
+                System.out.println("INVALID: --jfr requires a JRE with Java Flight Recorder (jdk.jfr, Java 8u262+ or 11+)");
+                usage();
+                System.exit(-1);
+            }
             
             // local config
             File altHomeDir = new File("servops");
@@ -149,21 +187,39 @@ public class Main {
                 threads = Integer.parseInt(str);
             }
             
-            // need one source and one destination connection per thread
+            str = am.getValue("batch-size");
+            int batchSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+            if (str != null) {
+                batchSize = Integer.parseInt(str);
+            }
+            
+            str = am.getValue("page-size");
+            int pageSize = 1000;
+            if (str != null) {
+                pageSize = Integer.parseInt(str);
+            }
+            
+            int readers = getStageThreads(am, "readers");
+            int converters = getStageThreads(am, "converters");
+            int writers = getStageThreads(am, "writers");
+            
+            // need two source connections (iterator + read-ahead) per reader 
+            // and one destination connection per writer in each thread (held for the
+            // whole task by a bulk COPY) plus some for the main thread, checkpoint, and heartbeat
             DBConfig dbrc = new DBConfig();
             ConnectionConfig syb = dbrc.getConnectionConfig("SYBVAULT", "vospace2");
-            DBUtil.PoolConfig sybpool = new DBUtil.PoolConfig(syb, threads, 20000L, "select 123");
+            DBUtil.PoolConfig sybpool = new DBUtil.PoolConfig(syb, 2 * readers * threads, 20000L, "select 123");
             DBUtil.createJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME, sybpool);
             final DatabaseNodePersistence src = new VOSpaceNodePersistence();
             log.info("source ready: " + syb.getServer() + " " + syb.getDatabase() + "\n");
             
             ConnectionConfig pg = dbrc.getConnectionConfig("PGVAULT", am.getValue("pgdb"));
-            DBUtil.PoolConfig pgpool = new DBUtil.PoolConfig(pg, threads, 20000L, "select 123");
-            DBUtil.createJNDIDataSource("jdbc/nodes", pgpool);
-            DataSource vds = DBUtil.findJNDIDataSource("jdbc/nodes");
+            DBUtil.PoolConfig pgpool = new DBUtil.PoolConfig(pg, writers * threads + 4, 20000L, "select 123");
+            DBUtil.createJNDIDataSource(DEST_DATASOURCE, pgpool);
+            DataSource vds = DBUtil.findJNDIDataSource(DEST_DATASOURCE);
             
             log.info("init database for vospace: START");
-            InitDatabaseVOS vs = new InitDatabaseVOS(vds, null, "vospace");
+            InitDatabaseVOS vs = new InitDatabaseVOS(vds, null, DEST_SCHEMA);
             vs.doInit();
             log.info("init database for vospace: OK");
             
@@ -174,13 +230,85 @@ public class Main {
             Migrate mig = new Migrate(src, dest);
             mig.setRecursive(recursive);
             mig.setDeletions(am.isSet("deletions"));
+            mig.setFollow(am.isSet("follow"));
+            str = am.getValue("fetch-size");
+            int fetchSize = 1000;
+            if (str != null) {
+                fetchSize = Integer.parseInt(str);
+            }
+            mig.setEventFetch(fetchSize, am.isSet("paged"));
             mig.setDryrun(am.isSet("dryrun"));
             mig.setNodes(nodes);
             mig.setThreads(threads);
+            mig.setBatchSize(batchSize);
+            mig.setPageSize(pageSize);
+            mig.setPipeline(readers, converters, writers);
+            mig.setAdaptive(am.isSet("adaptive"));
+            mig.setPreflight(am.isSet("preflight"));
+            str = am.getValue("rate");
+            if (str != null) {
+                mig.setRate(Integer.parseInt(str));
+            }
+            mig.setScoped(am.isSet("scoped"));
+            mig.setResume(am.isSet("resume"));
+            mig.setIncremental(am.isSet("incremental"));
+            mig.setVerify(am.isSet("verify"));
+            mig.setSkipUnchanged(am.isSet("skip-unchanged"));
+            str = am.getValue("lease");
+            int lease = 300;
+            if (str != null) {
+                lease = Integer.parseInt(str);
+            }
+            mig.setShard(am.isSet("shard"), lease);
+            str = am.getValue("extract");
+            if (str != null) {
+                mig.setExtract(new File(str));
+            }
+            str = am.getValue("load");
+            if (str != null) {
+                mig.setLoad(new File(str));
+            }
+            str = am.getValue("dead-letters");
+            if (str != null) {
+                mig.setDeadLetters(new File(str), am.isSet("retry-dead-letters"));
+            }
+            str = am.getValue("prop-snapshot");
+            if (str != null) {
+                mig.setPropertySnapshot(new File(str));
+            }
+            if (am.isSet("bulk")) {
+                mig.setBulk(new BulkNodeLoader(vds, DEST_SCHEMA));
+            }
+            str = am.getValue("jfr");
+            if (str != null) {
+                MigrateEvents.startRecording(new File(str));
+            }
+            str = am.getValue("throttle");
+            if (str != null) {
+                SourceThrottle.get().watch(new File(str));
+            }
+            MigrateMetrics metrics = MigrateMetrics.get();
+            str = am.getValue("metrics-port");
+            if (str != null) {
+                metrics.startServer(Integer.parseInt(str));
+            }
+            str = am.getValue("metrics-file");
+            if (str != null) {
+                metrics.startSnapshots(new File(str), 60L);
+            }
             try {
                 Subject.doAs(subject, mig);
             } catch (PrivilegedActionException pex) {
                 throw pex.getException();
+            } finally {
+                metrics.stop();
+                if (MigrateEvents.Support.AVAILABLE) {
+                    MigrateEvents.stopRecording();
+                }
+            }
+            if (mig.getNumFailed() > 0) {
+                log.error("FAIL: " + mig.getNumFailed() + " migrate jobs failed");
+                System.exit(-1);
             }
             
         } catch (Exception unexpected) {
@@ -190,12 +318,54 @@ public class Main {
         }
     }
     
+    // number of threads in a pipeline stage: default 1
+    private static int getStageThreads(ArgumentMap am, String key) {
+        String str = am.getValue(key);
+        if (str == null) {
+            return 1;
+        }
+        int ret = Integer.parseInt(str);
+        if (ret < 1) {
+            throw new IllegalArgumentException("invalid --" + key + "=" + str + ": must be at least 1");
+        }
+        return ret;
+    }
+    
     private static void usage() {
         System.out.println("usage: vault-migrate --pgdb=<destination database name> [options] [--dryrun] ...");
         System.out.println("        --recursive <container node> [<container node> ...] : migrate specified nodes");
         System.out.println("        --deletions : process DeletedNodeEvent(s) from source");
+        System.out.println("        [--follow] : keep polling for new DeletedNodeEvent(s) until terminated (deletions mode)");
+        System.out.println("        [--fetch-size=<int>] : DeletedNodeEvent cursor fetch size or page size (default: 1000)");
+        System.out.println("        [--paged] : read DeletedNodeEvent(s) in keyset pages instead of one streaming cursor (implied by a source rows limit)");
         System.out.println("options:");
         System.out.println("        [-v|--verbose|-d|--debug]");
         System.out.println("        [--threads=<int>] : number of migrate threads (default: 1)");
+        System.out.println("        [--preflight] : estimate target sizes and migrate largest first");
+        System.out.println("        [--rate=<int>] : expected nodes/sec per thread to predict run time (with --preflight)");
+        System.out.println("        [--scoped] : query node properties per batch instead of loading all (small migrations)");
+        System.out.println("        [--prop-snapshot=<file>] : create or reuse a local snapshot of the source node properties");
+        System.out.println("        [--incremental] : only migrate nodes modified since the last successful run (recursive mode)");
+        System.out.println("        [--shard] : share the migration with other processes using work units in the destination (recursive mode, no targets: join)");
+        System.out.println("        [--lease=<int>] : work unit lease in seconds; units of a stopped process are claimed again after this (default: 300)");
+        System.out.println("        [--extract=<file>] : write the target nodes and all descendants to a local snapshot file");
+        System.out.println("        [--load=<file>] : migrate the nodes in a snapshot file (all or the specified targets) without the source");
+        System.out.println("        [--dead-letters=<file>] : record nodes that fail in file and continue (failed nodes fail the run)");
+        System.out.println("        [--retry-dead-letters] : only migrate the nodes recorded in the --dead-letters file");
+        System.out.println("        [--skip-unchanged] : do not re-write nodes that are already identical in the destination (recursive mode)");
+        System.out.println("        [--verify] : compare source and destination trees below each container and report mismatches");
+        System.out.println("        [--metrics-port=<int>] : serve live metrics (Prometheus text format) at http://localhost:<port>/metrics (loopback only)");
+        System.out.println("        [--metrics-file=<file>] : write a JSON snapshot of live metrics every 60 sec");
+        System.out.println("        [--jfr=<file>] : record migration JFR events (with JDK default settings) to file");
+        System.out.println("        [--throttle=<file>] : limit source queries/sec and rows/sec (properties: queries, rows); reloaded on change");
+        System.out.println("        [--resume] : continue recursive migration of the same targets from the last checkpoint");
+        System.out.println("        [--bulk] : initial load into an empty destination using COPY (recursive mode)");
+        System.out.println("        [--batch-size=<int>] : number of nodes to put or delete per destination transaction (default: " 
+                + NodeBatchWriter.DEFAULT_BATCH_SIZE + ")");
+        System.out.println("        [--page-size=<int>] : number of child nodes to get per source query (default: 1000)");
+        System.out.println("        [--readers=<int>] : source reader threads per migrate thread (default: 1)");
+        System.out.println("        [--converters=<int>] : node conversion threads per migrate thread (default: 1)");
+        System.out.println("        [--writers=<int>] : destination writer threads per migrate thread (default: 1)");
+        System.out.println("        [--adaptive] : adapt concurrent destination writes (1 to threads*writers, start at max(threads,writers)) to put latency");
     }
 }
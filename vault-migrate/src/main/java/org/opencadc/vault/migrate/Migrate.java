@@ -67,17 +67,28 @@
 
 package org.opencadc.vault.migrate;
 
+import ca.nrc.cadc.date.DateUtil;
 import ca.nrc.cadc.thread.ThreadedRunnableExecutor;
+import ca.nrc.cadc.vos.NodeNotFoundException;
 import ca.nrc.cadc.vos.server.db.DatabaseNodePersistence;
+import java.io.File;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.PrivilegedExceptionAction;
+import java.text.DateFormat;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.TreeMap;
 import org.apache.log4j.Logger;
+import org.opencadc.inventory.db.HarvestState;
+import org.opencadc.inventory.db.HarvestStateDAO;
 import org.opencadc.vault.NodePersistenceImpl;
 import org.opencadc.vospace.Node;
+import org.opencadc.vospace.db.NodeDAO;
 
 /**
  *
@@ -86,6 +97,8 @@ import org.opencadc.vospace.Node;
 public class Migrate implements PrivilegedExceptionAction<Void> {
     private static final Logger log = Logger.getLogger(Migrate.class);
 
+    static final String INCREMENTAL_STATE = "migrate-incremental";
+    
     private static final ca.nrc.cadc.vos.VOSURI SRCROOT = new ca.nrc.cadc.vos.VOSURI(URI.create("vos://cadc.nrc.ca!vault/"));
     
     private final DatabaseNodePersistence src;
@@ -96,7 +109,33 @@ public class Migrate implements PrivilegedExceptionAction<Void> {
     private boolean recursive = false;
     private boolean dryrun = false;
     private boolean deletions = false;
+    private boolean follow = false;
+    private int fetchSize = 1000;
+    private boolean paged = false;
     private int threads = 1;
+    private int batchSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+    private int pageSize = 1000;
+    private int readers = 1;
+    private int converters = 1;
+    private int writers = 1;
+    private boolean adaptive = false;
+    private BulkNodeLoader bulk;
+    private boolean preflight = false;
+    private Integer rate;
+    private File propertySnapshot;
+    private boolean scoped = false;
+    private boolean resume = false;
+    private boolean incremental = false;
+    private boolean verify = false;
+    private boolean skipUnchanged = false;
+    private File deadLetterFile;
+    private boolean retryDeadLetters = false;
+    private File extractFile;
+    private File loadFile;
+    private boolean shard = false;
+    private int lease = 300;
+    
+    private int numFailed = 0;
     
     public Migrate(DatabaseNodePersistence src, NodePersistenceImpl dest) {
         this.src = src;
@@ -116,6 +155,162 @@ public class Migrate implements PrivilegedExceptionAction<Void> {
         this.threads = threads;
     }
     
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+    
+    /**
+     * Configure the number of threads in each stage of the per-task pipeline.
+     * 
+     * @param readers source reader threads
+     * @param converters node conversion threads
+     * @param writers destination writer threads
+     */
+    public void setPipeline(int readers, int converters, int writers) {
+        this.readers = readers;
+        this.converters = converters;
+        this.writers = writers;
+    }
+    
+    /**
+     * Enable adaptive (AIMD) control of concurrent destination writes, between 1 and
+     * threads * writers, starting from max(threads, writers) so ramp up does not
+     * start from a single writer.
+     * 
+     * @param adaptive enable adaptive write limit
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+    
+    /**
+     * Skip nodes that are already identical in the destination so a re-run only
+     * writes new and changed nodes.
+     * 
+     * @param skipUnchanged enable skip-unchanged mode
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+    
+    /**
+     * Record nodes that fail to convert or write in a dead letter file and continue
+     * instead of failing the whole task. In retry mode only the nodes in the file
+     * are migrated and the ones that still fail are recorded again.
+     * 
+     * @param f dead letter file
+     * @param retry re-process the nodes in the file
+     */
+    public void setDeadLetters(File f, boolean retry) {
+        this.deadLetterFile = f;
+        this.retryDeadLetters = retry;
+    }
+    
+    /**
+     * Extract mode: write the target nodes and all their descendants to a local
+     * snapshot file instead of migrating.
+     * 
+     * @param f snapshot file to create
+     */
+    public void setExtract(File f) {
+        this.extractFile = f;
+    }
+    
+    /**
+     * Load mode: migrate the nodes in a snapshot file created in extract mode; the
+     * source database is not used.
+     * 
+     * @param f snapshot file to load
+     */
+    public void setLoad(File f) {
+        this.loadFile = f;
+    }
+    
+    /**
+     * Sharded mode: share the migration with other processes through work units in
+     * the destination database. The target containers are registered as work units
+     * and this process claims units until all are done.
+     * 
+     * @param shard enable sharded mode
+     * @param lease work unit lease in seconds
+     */
+    public void setShard(boolean shard, int lease) {
+        this.shard = shard;
+        this.lease = lease;
+    }
+    
+    public void setBulk(BulkNodeLoader bulk) {
+        this.bulk = bulk;
+    }
+    
+    public void setPreflight(boolean preflight) {
+        this.preflight = preflight;
+    }
+    
+    /**
+     * Set the expected migration rate per thread used to predict the run time 
+     * from the pre-flight size estimate.
+     * 
+     * @param rate nodes/sec per thread
+     */
+    public void setRate(Integer rate) {
+        this.rate = rate;
+    }
+    
+    /**
+     * Use a local snapshot file for the source node property cache.
+     * 
+     * @param f snapshot file (created if it does not exist)
+     */
+    public void setPropertySnapshot(File f) {
+        this.propertySnapshot = f;
+    }
+    
+    /**
+     * Scoped mode: query node properties for each batch of child nodes instead of
+     * loading all properties in the source. This is faster for small migrations.
+     * 
+     * @param scoped enable scoped mode
+     */
+    public void setScoped(boolean scoped) {
+        this.scoped = scoped;
+    }
+    
+    /**
+     * Resume recursive migration from the checkpoints of a previous run with the 
+     * same targets. Without this, existing checkpoints below the targets are removed.
+     * 
+     * @param resume enable resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+    
+    /**
+     * Enable incremental mode: only nodes modified since the watermark of each target
+     * are migrated and the watermark is advanced when all tasks for the target succeed.
+     * Properties are queried per batch (scoped) unless a property snapshot is used.
+     * 
+     * @param incremental enable incremental mode
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+    
+    /**
+     * Verify mode: compare the source and destination trees below each target container
+     * and report mismatched nodes instead of migrating.
+     * 
+     * @param verify enable verify mode
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+    
     public void setDryrun(boolean dryrun) {
         this.dryrun = dryrun;
     }
@@ -123,22 +318,67 @@ public class Migrate implements PrivilegedExceptionAction<Void> {
     public void setDeletions(boolean deletions) {
         this.deletions = deletions;
     }
+    
+    /**
+     * Deletions mode: keep polling for new events instead of exiting when done.
+     * 
+     * @param follow enable follow mode
+     */
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+    
+    /**
+     * Deletions mode: configure how events are read from the source.
+     * 
+     * @param fetchSize cursor fetch size or page size
+     * @param paged true for keyset paging, false for a single streaming cursor
+     */
+    public void setEventFetch(int fetchSize, boolean paged) {
+        this.fetchSize = fetchSize;
+        this.paged = paged;
+    }
+
+    /**
+     * @return number of migrate jobs that failed in the last run
+     */
+    public int getNumFailed() {
+        return numFailed;
+    }
 
     @Override
     public Void run() throws Exception {
         if (deletions) {
             MigrateDeletionsTask job = new MigrateDeletionsTask(dest);
+            job.follow = follow;
+            job.batchSize = batchSize;
+            job.fetchSize = fetchSize;
+            job.paged = paged;
             job.dryrun = dryrun;
             job.run();
             return null;
         }
 
+        if (retryDeadLetters) {
+            retryDeadLetters();
+            return null;
+        }
+        
+        if (loadFile != null) {
+            load();
+            return null;
+        }
+        
         // careful in root container
-        ca.nrc.cadc.vos.ContainerNode srcRoot = (ca.nrc.cadc.vos.ContainerNode) src.get(SRCROOT);
+        ca.nrc.cadc.vos.ContainerNode srcRoot = (ca.nrc.cadc.vos.ContainerNode) getSourceNode(SRCROOT);
         List<ca.nrc.cadc.vos.Node> targets = new ArrayList<>();
         if (nodes.isEmpty()) {
-            src.getChildren(srcRoot);
-            targets.addAll(srcRoot.getNodes());
+            if (!shard) { // sharded: join the work units registered by other processes
+                SourceThrottle.get().query();
+                src.getChildren(srcRoot);
+                SourceThrottle.get().rows(srcRoot.getNodes().size());
+                targets.addAll(srcRoot.getNodes());
+            }
         } else {
             for (String name : nodes) {
                 String[] path = name.split("/");
@@ -147,7 +387,9 @@ public class Migrate implements PrivilegedExceptionAction<Void> {
                 ca.nrc.cadc.vos.Node child = null;
                 for (String n : path) {
                     if (!n.isEmpty()) { // leading / causes blank
+                        SourceThrottle.get().query();
                         src.getChild(cur, n);
+                        SourceThrottle.get().rows(cur.getNodes().size());
                         if (cur.getNodes().isEmpty()) {
                             log.warn("not found: " + n + " from " + name);
                         } else {
@@ -166,54 +408,533 @@ public class Migrate implements PrivilegedExceptionAction<Void> {
         }
         log.info("target nodes: " + targets.size());
         
-        final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        if (extractFile != null) {
+            extract(targets);
+            return null;
+        }
+        
+        if (preflight) {
+            // largest first so the biggest container does not start last
+            TargetSizeEstimator est = new TargetSizeEstimator();
+            est.estimate(targets);
+            est.sortLargestFirst(targets);
+            long total = 0L;
+            for (ca.nrc.cadc.vos.Node n : targets) {
+                long sz = est.getEstimate(n);
+                total += sz;
+                log.info(String.format("estimate %s %d", n.getUri().getPath(), sz));
+            }
+            long makespan = est.getMakespan(targets, threads);
+            log.info(String.format("estimate total: %d nodes largest-thread: %d nodes", total, makespan));
+            if (rate != null) {
+                double hours = ((double) makespan) / (rate * 3600.0);
+                log.info(String.format("estimate run time: %.1f hours at %d nodes/sec/thread", hours, rate));
+            }
+        }
+        
+        if (verify) {
+            PropertyLookup propertyCache = null;
+            if (propertySnapshot != null) {
+                propertyCache = SourceNodeIterator.initPropertySnapshot(propertySnapshot, threads);
+            } else if (!scoped) {
+                propertyCache = SourceNodeIterator.initPropertyCache(threads);
+            }
+            MigrateVerifier verifier = new MigrateVerifier(src, dest, propertyCache);
+            verifier.pageSize = pageSize;
+            for (ca.nrc.cadc.vos.Node in : targets) {
+                if (in instanceof ca.nrc.cadc.vos.ContainerNode) {
+                    List<String> mismatches = verifier.verify((ca.nrc.cadc.vos.ContainerNode) in);
+                    for (String m : mismatches) {
+                        log.error("MISMATCH: " + m);
+                    }
+                    if (!mismatches.isEmpty()) {
+                        numFailed++;
+                    }
+                }
+            }
+            log.info("verify DONE: targets with mismatches: " + numFailed);
+            return null;
+        }
+        
+        if (shard) {
+            runShard(targets);
+            return null;
+        }
+        
+        if (bulk != null && !dryrun) {
+            if (resume) {
+                throw new IllegalArgumentException("cannot resume a bulk load: staging table is not persistent");
+            }
+            bulk.init();
+        }
+        // incremental: per-target watermarks; the source listing uses the oldest one
+        HarvestStateDAO stateDAO = null;
+        Map<URI, HarvestState> watermarks = new TreeMap<>();
+        Date nextWatermark = null;
+        if (incremental && recursive) {
+            NodeDAO nodeDAO = new NodeDAO();
+            nodeDAO.setConfig(dest.getNodeDaoConfig());
+            stateDAO = new HarvestStateDAO(nodeDAO);
+            nextWatermark = SourceNodeIterator.getSourceWatermark();
+            Date since = null;
+            boolean full = false;
+            for (ca.nrc.cadc.vos.Node in : targets) {
+                if (in instanceof ca.nrc.cadc.vos.ContainerNode) {
+                    URI uri = in.getUri().getURI();
+                    HarvestState hs = stateDAO.get(INCREMENTAL_STATE, uri);
+                    if (hs == null) {
+                        hs = new HarvestState(INCREMENTAL_STATE, uri);
+                    }
+                    watermarks.put(uri, hs);
+                    if (hs.curLastModified == null) {
+                        full = true;
+                    } else if (since == null || hs.curLastModified.before(since)) {
+                        since = hs.curLastModified;
+                    }
+                    log.info("incremental " + in.getUri().getPath() + " watermark: " + format(hs.curLastModified));
+                }
+            }
+            if (full) {
+                since = null;
+            }
+            SourceNodeIterator.setIncremental(since);
+            log.info("incremental since: " + format(since) + " next watermark: " + format(nextWatermark));
+        }
+        
+        WriteLimiter limiter = null;
+        if (adaptive && recursive) {
+            limiter = new WriteLimiter(1, Math.max(threads, writers), threads * writers);
+        }
+        
+        DeadLetterFile deadLetters = null;
+        if (recursive && deadLetterFile != null) {
+            deadLetters = new DeadLetterFile(deadLetterFile);
+        }
+        
+        MigrateCheckpoint checkpoint = null;
+        if (recursive && !dryrun && bulk == null) {
+            checkpoint = new MigrateCheckpoint(dest);
+        }
+        
+        final TaskQueue tasks = new TaskQueue(threads);
         int num = 0;
-        Map<Long,List<ca.nrc.cadc.vos.NodeProperty>> propertyCache = null; // lazy init
+        PropertyLookup propertyCache = null; // lazy init
+        List<Node> bulkTargets = new ArrayList<>();
         for (ca.nrc.cadc.vos.Node in : targets) {
-            src.getProperties(in);
+            getSourceProperties(in);
             Node nn = conv.convert(in);
             if (!dryrun) {
-                dest.put(nn);
+                if (bulk != null) {
+                    bulkTargets.add(nn); // staged with the children so the node table stays empty until finish
+                } else {
+                    dest.put(nn);
+                }
             }
             if (recursive && in instanceof ca.nrc.cadc.vos.ContainerNode) {
                 if (propertyCache == null) {
-                    propertyCache = SourceNodeIterator.initPropMap();
+                    if (propertySnapshot != null) {
+                        propertyCache = SourceNodeIterator.initPropertySnapshot(propertySnapshot, threads);
+                    } else if (!scoped && !incremental) {
+                        propertyCache = SourceNodeIterator.initPropertyCache(threads);
+                    }
+                    // else: scoped mode: SourceNodeIterator queries properties per batch
                 }
                 ca.nrc.cadc.vos.ContainerNode icn = (ca.nrc.cadc.vos.ContainerNode) in;
-                MigrateNodesTask job = new MigrateNodesTask(src, dest, icn, propertyCache);
-                job.dryrun = dryrun;
-                queue.put(job);
+                Map<URI, HarvestState> states = new TreeMap<>();
+                if (checkpoint != null) {
+                    if (resume) {
+                        states.putAll(checkpoint.getStates(icn));
+                    } else {
+                        checkpoint.clear(icn);
+                    }
+                }
+                HarvestState ts = states.get(icn.getUri().getURI());
+                if (ts != null && ts.curLastModified != null) {
+                    log.info("resume: skip complete " + icn.getUri().getPath());
+                } else {
+                    tasks.submit(createTask(icn, propertyCache, checkpoint, ts, states.keySet(), tasks, 
+                            limiter, deadLetters));
+                }
+                // containers split off in the previous run
+                for (Map.Entry<URI, HarvestState> me : states.entrySet()) {
+                    HarvestState hs = me.getValue();
+                    if (hs != ts && hs.curLastModified == null) {
+                        ca.nrc.cadc.vos.Node sn;
+                        try {
+                            sn = getSourceNode(new ca.nrc.cadc.vos.VOSURI(me.getKey()));
+                        } catch (NodeNotFoundException ex) {
+                            sn = null;
+                        }
+                        if (!(sn instanceof ca.nrc.cadc.vos.ContainerNode)) {
+                            log.info("resume: container not found in source: " + me.getKey() + " (checkpoint deleted)");
+                            checkpoint.delete(hs);
+                            continue;
+                        }
+                        log.info("resume: " + sn.getUri().getPath());
+                        tasks.submit(createTask((ca.nrc.cadc.vos.ContainerNode) sn, propertyCache, checkpoint, 
+                                hs, states.keySet(), tasks, limiter, deadLetters));
+                    }
+                }
             }
             // same log format as used in MigrateWorker
             log.info(String.format("%d %s %s", ++num, in.getClass().getSimpleName(), in.getUri().getPath()));
         }
-        log.info("migrate jobs: " + queue.size());
+        log.info("migrate jobs: " + tasks.size());
+        if (!bulkTargets.isEmpty()) {
+            BulkNodeLoader.CopyStream copy = bulk.open();
+            try {
+                copy.write(bulkTargets);
+                copy.close();
+                copy = null;
+            } finally {
+                if (copy != null) {
+                    copy.cancel(); // do not commit a partial stream
+                }
+            }
+        }
 
-        ThreadedRunnableExecutor threadPool = new ThreadedRunnableExecutor(queue, threads);
+        ThreadedRunnableExecutor threadPool = new ThreadedRunnableExecutor(tasks.getQueue(), threads);
         log.info("migrate threads: " + threads);
 
-        long poll = 12000L; // 2 rounds
-        boolean waiting = true;
-        while (waiting) {
-            if (queue.isEmpty()) {
-                // look more closely at state of thread pool
-                if (threadPool.getAllThreadsIdle()) {
-                    log.info("queue empty and threads idle - DONE");
-                    waiting = false;
+        tasks.await();
+        List<String> failed = tasks.getFailed();
+        log.info("migrate jobs DONE: succeeded: " + tasks.getNumSucceeded() + " failed: " + failed.size());
+        for (String f : failed) {
+            log.error("FAILED: " + f);
+        }
+        this.numFailed = failed.size();
+        threadPool.terminate();
+        boolean dropped = false;
+        if (deadLetters != null) {
+            deadLetters.close();
+            if (deadLetters.getCount() > 0) {
+                log.error("dead letters: " + deadLetters.getCount() + " nodes recorded in " + deadLetters.getFile()
+                        + " (use --retry-dead-letters)");
+                dropped = true;
+                numFailed++;
+            }
+        }
+        if (checkpoint != null) {
+            checkpoint.flush();
+        }
+        if (limiter != null) {
+            log.info("destination write " + limiter);
+        }
+        
+        if (bulk != null && !dryrun) {
+            if (failed.isEmpty()) {
+                bulk.finish();
+            } else {
+                log.error("bulk load not finished: " + failed.size() + " jobs failed; destination unchanged");
+                dropped = true; // nothing was loaded
+            }
+        }
+        
+        if (stateDAO != null && !dryrun && nextWatermark != null) {
+            for (HarvestState hs : watermarks.values()) {
+                String path = new ca.nrc.cadc.vos.VOSURI(hs.getResourceID()).getPath();
+                boolean ok = !dropped; // dead letters are not migrated: keep the watermark before them
+                for (String f : failed) {
+                    if (f.equals(path) || f.startsWith(path + "/")) {
+                        ok = false;
+                    }
+                }
+                if (ok) {
+                    hs.curLastModified = nextWatermark;
+                    stateDAO.put(hs);
+                    log.info("incremental " + path + " watermark: " + format(nextWatermark));
                 } else {
-                    log.debug("queue empty but threads working - Migrate.POLL dt=" + poll);
-                    Thread.sleep(poll);
+                    log.warn("incremental " + path + " failed: watermark not changed");
                 }
-            } else {
-                log.debug("queue not empty - FileSync.POLL dt=" + poll);
-                Thread.sleep(poll);
             }
-
         }
-        threadPool.terminate();
         
         return null;
     }
 
+    // register the target containers and migrate work units until none are left
+    private void runShard(List<ca.nrc.cadc.vos.Node> targets) throws Exception {
+        MigrateWorkUnits workUnits = new MigrateWorkUnits();
+        workUnits.lease = lease;
+        workUnits.init();
+        for (ca.nrc.cadc.vos.Node in : targets) {
+            getSourceProperties(in);
+            Node nn = conv.convert(in);
+            if (!dryrun) {
+                dest.put(nn);
+            }
+            if (in instanceof ca.nrc.cadc.vos.ContainerNode) {
+                workUnits.register(in.getUri().getURI());
+            }
+        }
+        
+        WriteLimiter limiter = null;
+        if (adaptive) {
+            limiter = new WriteLimiter(1, Math.max(threads, writers), threads * writers);
+        }
+        DeadLetterFile deadLetters = null;
+        if (deadLetterFile != null) {
+            deadLetters = new DeadLetterFile(deadLetterFile);
+        }
+        
+        final TaskQueue tasks = new TaskQueue(threads);
+        ThreadedRunnableExecutor threadPool = new ThreadedRunnableExecutor(tasks.getQueue(), threads);
+        log.info("migrate threads: " + threads + " worker: " + workUnits.getWorker());
+        workUnits.startHeartbeat();
+        PropertyLookup propertyCache = null; // lazy init
+        boolean propertiesInit = false;
+        int num = 0;
+        try {
+            boolean done = false;
+            while (!done) {
+                tasks.clearReserved(); // the units registered for idle workers are claimed below
+                while (tasks.hasIdleWorker()) {
+                    MigrateWorkUnits.WorkUnit u = workUnits.claim();
+                    if (u == null) {
+                        break;
+                    }
+                    ca.nrc.cadc.vos.Node sn;
+                    try {
+                        sn = getSourceNode(new ca.nrc.cadc.vos.VOSURI(u.uri));
+                    } catch (NodeNotFoundException ex) {
+                        sn = null;
+                    }
+                    if (!(sn instanceof ca.nrc.cadc.vos.ContainerNode)) {
+                        log.warn("work unit " + u.uri + ": container not found in source");
+                        workUnits.done(u, true);
+                        continue;
+                    }
+                    if (!propertiesInit) {
+                        if (propertySnapshot != null) {
+                            propertyCache = SourceNodeIterator.initPropertySnapshot(propertySnapshot, threads);
+                        } else if (!scoped) {
+                            propertyCache = SourceNodeIterator.initPropertyCache(threads);
+                        }
+                        propertiesInit = true;
+                    }
+                    MigrateNodesTask job = createTask((ca.nrc.cadc.vos.ContainerNode) sn, propertyCache, null, null, 
+                            workUnits.getBelow(u.uri), tasks, limiter, deadLetters);
+                    job.workUnits = workUnits;
+                    job.unit = u;
+                    tasks.submit(job);
+                    log.info(String.format("%d %s %s", ++num, sn.getClass().getSimpleName(), sn.getUri().getPath()));
+                }
+                // wake up when a local task finishes or poll for units released by other processes
+                boolean idle = tasks.await(10 * 1000L);
+                done = idle && workUnits.isFinished();
+            }
+        } finally {
+            workUnits.stopHeartbeat();
+            threadPool.terminate();
+            if (deadLetters != null) {
+                deadLetters.close();
+            }
+        }
+        List<String> failed = tasks.getFailed();
+        log.info("migrate jobs DONE: succeeded: " + tasks.getNumSucceeded() + " failed: " + failed.size());
+        for (String f : failed) {
+            log.error("FAILED: " + f);
+        }
+        log.info("work units: " + workUnits.getSummary());
+        this.numFailed = failed.size();
+        if (deadLetters != null && deadLetters.getCount() > 0) {
+            log.error("dead letters: " + deadLetters.getCount() + " nodes recorded in " + deadLetters.getFile()
+                    + " (use --retry-dead-letters)");
+            numFailed++;
+        }
+    }
+    
+    // write each target and its descendants to one section of the snapshot file
+    private void extract(List<ca.nrc.cadc.vos.Node> targets) throws Exception {
+        PropertyLookup propertyCache = null;
+        if (propertySnapshot != null) {
+            propertyCache = SourceNodeIterator.initPropertySnapshot(propertySnapshot, threads);
+        } else if (!scoped) {
+            propertyCache = SourceNodeIterator.initPropertyCache(threads);
+        }
+        long start = System.currentTimeMillis();
+        long total = 0L;
+        try (NodeSnapshot.Writer w = NodeSnapshot.create(extractFile, NodeSnapshot.CHUNK_SIZE)) {
+            for (ca.nrc.cadc.vos.Node in : targets) {
+                long t1 = System.currentTimeMillis();
+                long num = 1L;
+                w.startSection(in.getUri().getPath());
+                getSourceProperties(in);
+                w.add(in);
+                if (in instanceof ca.nrc.cadc.vos.ContainerNode) {
+                    SourceNodeIterator iter = new SourceNodeIterator(src, propertyCache);
+                    try {
+                        iter.setPageSize(pageSize);
+                        iter.setContainer((ca.nrc.cadc.vos.ContainerNode) in);
+                        while (iter.hasNext()) {
+                            w.add(iter.next());
+                            num++;
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                }
+                w.endSection();
+                total += num;
+                log.info(String.format("extract %s count: %d total-time: %d ms", in.getUri().getPath(), num,
+                        System.currentTimeMillis() - t1));
+            }
+        }
+        long dt = System.currentTimeMillis() - start;
+        log.info("extract DONE: " + total + " nodes in " + dt + " ms -> " + extractFile);
+    }
     
+    // migrate the sections of a snapshot file: all or the ones matching the target nodes
+    private void load() throws Exception {
+        if (bulk != null && !dryrun) {
+            bulk.init();
+        }
+        DeadLetterFile deadLetters = null;
+        if (deadLetterFile != null) {
+            deadLetters = new DeadLetterFile(deadLetterFile);
+        }
+        List<String> failed = new ArrayList<>();
+        try (NodeSnapshot snapshot = NodeSnapshot.open(loadFile)) {
+            NodeSnapshotLoader loader = new NodeSnapshotLoader(snapshot, dest);
+            loader.threads = threads;
+            loader.batchSize = batchSize;
+            loader.dryrun = dryrun;
+            loader.skipUnchanged = skipUnchanged;
+            loader.bulk = bulk;
+            loader.deadLetters = deadLetters;
+            for (NodeSnapshot.Section s : snapshot.getSections()) {
+                if (!nodes.isEmpty() && !isTarget(s.getPath())) {
+                    log.debug("load: skip " + s.getPath());
+                    continue;
+                }
+                try {
+                    loader.load(s);
+                } catch (Exception ex) {
+                    log.error("FAIL load " + s.getPath(), ex);
+                    failed.add(s.getPath());
+                }
+            }
+        } finally {
+            if (deadLetters != null) {
+                deadLetters.close();
+            }
+        }
+        log.info("load DONE: failed: " + failed.size());
+        this.numFailed = failed.size();
+        if (deadLetters != null && deadLetters.getCount() > 0) {
+            log.error("dead letters: " + deadLetters.getCount() + " nodes recorded in " + deadLetters.getFile()
+                    + " (use --retry-dead-letters: reads the nodes from the live source, not the snapshot)");
+            numFailed++;
+        }
+        if (bulk != null && !dryrun && failed.isEmpty()) {
+            bulk.finish();
+        }
+    }
+    
+    // check if a snapshot section path matches one of the target nodes
+    private boolean isTarget(String path) {
+        for (String name : nodes) {
+            String p = (name.startsWith("/") ? name : "/" + name);
+            if (path.equals(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // migrate the nodes recorded in the dead letter file; the ones that fail again are re-recorded
+    private void retryDeadLetters() throws Exception {
+        if (!deadLetterFile.exists()) {
+            throw new IllegalArgumentException("dead letter file not found: " + deadLetterFile);
+        }
+        File prev = new File(deadLetterFile.getPath() + ".prev");
+        if (prev.exists()) {
+            // left by a retry that did not finish: it may be the only record of some nodes
+            throw new IllegalStateException("found " + prev + " from a previous retry: merge it into " 
+                    + deadLetterFile + " and remove it before retrying");
+        }
+        if (!deadLetterFile.renameTo(prev)) {
+            throw new IllegalStateException("failed to rename " + deadLetterFile + " -> " + prev);
+        }
+        List<URI> uris = DeadLetterFile.read(prev);
+        log.info("retry dead letters: " + uris.size() + " nodes from " + prev);
+        DeadLetterFile deadLetters = new DeadLetterFile(deadLetterFile);
+        int num = 0;
+        int notFound = 0;
+        try {
+            for (URI uri : uris) {
+                ca.nrc.cadc.vos.Node sn;
+                try {
+                    sn = getSourceNode(new ca.nrc.cadc.vos.VOSURI(uri));
+                } catch (NodeNotFoundException ex) {
+                    log.info("retry: not found in source: " + uri);
+                    notFound++;
+                    continue;
+                }
+                try {
+                    getSourceProperties(sn);
+                    Node nn = conv.convert(sn);
+                    if (!dryrun) {
+                        dest.put(nn);
+                    }
+                    log.info("retry: " + sn.getUri().getPath());
+                    num++;
+                } catch (ParseException | URISyntaxException | RuntimeException ex) {
+                    deadLetters.add(uri, ex);
+                }
+            }
+        } finally {
+            deadLetters.close();
+        }
+        // all nodes retried: the ones that still fail are in the new file
+        if (!prev.delete()) {
+            log.warn("failed to delete " + prev);
+        }
+        log.info("retry dead letters DONE: succeeded: " + num + " not-found: " + notFound 
+                + " failed: " + deadLetters.getCount());
+        this.numFailed = deadLetters.getCount();
+    }
+    
+    // single node lookups count against the source throttle like the iterator queries
+    private ca.nrc.cadc.vos.Node getSourceNode(ca.nrc.cadc.vos.VOSURI uri) throws NodeNotFoundException {
+        SourceThrottle.get().query();
+        ca.nrc.cadc.vos.Node ret = src.get(uri);
+        SourceThrottle.get().rows(1L);
+        return ret;
+    }
+    
+    private void getSourceProperties(ca.nrc.cadc.vos.Node n) {
+        SourceThrottle.get().query();
+        src.getProperties(n);
+        SourceThrottle.get().rows(n.getProperties().size());
+    }
+    
+    private String format(Date d) {
+        if (d == null) {
+            return "none";
+        }
+        DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
+        return df.format(d);
+    }
+    
+    private MigrateNodesTask createTask(ca.nrc.cadc.vos.ContainerNode cn, PropertyLookup propertyCache, 
+            MigrateCheckpoint checkpoint, HarvestState resumeState, Set<URI> exclude, TaskQueue tasks,
+            WriteLimiter limiter, DeadLetterFile deadLetters) {
+        MigrateNodesTask job = new MigrateNodesTask(src, dest, cn, propertyCache);
+        job.dryrun = dryrun;
+        job.batchSize = batchSize;
+        job.pageSize = pageSize;
+        job.readers = readers;
+        job.converters = converters;
+        job.writers = writers;
+        job.bulk = bulk;
+        job.tasks = tasks;
+        job.checkpoint = checkpoint;
+        job.resumeState = resumeState;
+        job.exclude = exclude;
+        job.limiter = limiter;
+        job.skipUnchanged = skipUnchanged;
+        job.deadLetters = deadLetters;
+        return job;
+    }
 }    
@@ -0,0 +1,288 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.db.DBUtil;
+import java.net.URI;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.opencadc.inventory.db.HarvestState;
+import org.opencadc.inventory.db.HarvestStateDAO;
+import org.opencadc.vault.NodePersistenceImpl;
+import org.opencadc.vospace.db.NodeDAO;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Persistent progress of recursive migrate tasks. There is one HarvestState per 
+ * container that a source reader started from (the task target or a container that
+ * was split off); curID holds the source nodeID of the last node known to be written
+ * in iteration order and curLastModified is set when the container is complete.
+ * Nodes are written by parallel writers so the position only advances when all
+ * earlier chunks from the same reader have been written.
+ * 
+ * @author pdowler
+ */
+public class MigrateCheckpoint {
+    private static final Logger log = Logger.getLogger(MigrateCheckpoint.class);
+
+    static final String STATE_NAME = "migrate-nodes";
+    
+    private final HarvestStateDAO dao;
+    private final JdbcTemplate jdbc;
+    private final Set<Cursor> cursors = new HashSet<>();
+    private long lastFlush = System.currentTimeMillis();
+    
+    long interval = 60 * 1000L; // ms between flushes
+    
+    public MigrateCheckpoint(NodePersistenceImpl dest) {
+        NodeDAO nodeDAO = new NodeDAO();
+        nodeDAO.setConfig(dest.getNodeDaoConfig());
+        this.dao = new HarvestStateDAO(nodeDAO);
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(Main.DEST_DATASOURCE);
+            this.jdbc = new JdbcTemplate(ds);
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + Main.DEST_DATASOURCE + " via JNDI");
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(new FlushHook(), "MigrateCheckpoint.flush"));
+    }
+    
+    /**
+     * Get existing checkpoints for the specified container and all containers below it.
+     * 
+     * @param target top level container of a task
+     * @return map of container URI to state
+     */
+    public Map<URI, HarvestState> getStates(ca.nrc.cadc.vos.ContainerNode target) {
+        URI uri = target.getUri().getURI();
+        String sql = "SELECT resourceID FROM " + Main.DEST_SCHEMA + ".HarvestState"
+                + " WHERE name = ? AND (resourceID = ? OR resourceID LIKE ? ESCAPE '\\')";
+        List<String> ids = jdbc.queryForList(sql, String.class, STATE_NAME, uri.toASCIIString(), 
+                likeBelow(uri.toASCIIString()));
+        Map<URI, HarvestState> ret = new TreeMap<>();
+        for (String s : ids) {
+            URI r = URI.create(s);
+            HarvestState hs = dao.get(STATE_NAME, r);
+            if (hs != null) {
+                ret.put(r, hs);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Remove the checkpoint of a single container.
+     * 
+     * @param hs checkpoint state
+     */
+    public void delete(HarvestState hs) {
+        dao.delete(hs.getID());
+    }
+    
+    // LIKE pattern for everything below a container: _ and % are common in names
+    static String likeBelow(String uri) {
+        String s = uri.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+        return s + "/%";
+    }
+    
+    /**
+     * Remove existing checkpoints for the specified container and all containers below it
+     * so a new run does not skip content.
+     * 
+     * @param target top level container of a task
+     */
+    public void clear(ca.nrc.cadc.vos.ContainerNode target) {
+        for (HarvestState hs : getStates(target).values()) {
+            log.debug("clear: " + hs.getResourceID());
+            dao.delete(hs.getID());
+        }
+    }
+    
+    /**
+     * Start tracking a reader that iterates the specified container.
+     * 
+     * @param cn container
+     * @return cursor for the reader
+     */
+    public synchronized Cursor start(ca.nrc.cadc.vos.ContainerNode cn) {
+        URI uri = cn.getUri().getURI();
+        HarvestState hs = dao.get(STATE_NAME, uri);
+        if (hs == null) {
+            hs = new HarvestState(STATE_NAME, uri);
+        }
+        // record that a reader owns this container
+        dao.put(hs);
+        Cursor ret = new Cursor(hs);
+        cursors.add(ret);
+        return ret;
+    }
+    
+    /**
+     * Record that a chunk was written. 
+     * 
+     * @param c reader cursor
+     * @param seq chunk sequence number
+     * @param lastNodeID source nodeID of the last node in the chunk
+     */
+    public synchronized void written(Cursor c, long seq, long lastNodeID) {
+        c.written.put(seq, lastNodeID);
+        Long nid = c.written.remove(c.committedSeq + 1);
+        while (nid != null) {
+            c.committedSeq++;
+            c.state.curID = new UUID(0L, nid);
+            c.dirty = true;
+            nid = c.written.remove(c.committedSeq + 1);
+        }
+        complete(c);
+        if (System.currentTimeMillis() - lastFlush > interval) {
+            flush();
+        }
+    }
+    
+    /**
+     * Record that the reader finished iterating; the container is complete once all
+     * chunks are written.
+     * 
+     * @param c reader cursor
+     */
+    public synchronized void readerDone(Cursor c) {
+        c.readerDone = true;
+        complete(c);
+    }
+    
+    private void complete(Cursor c) {
+        if (c.readerDone && c.committedSeq == c.lastSeq) {
+            c.state.curID = null;
+            c.state.curLastModified = new Date();
+            dao.put(c.state);
+            cursors.remove(c);
+            log.debug("complete: " + c.state.getResourceID());
+        }
+    }
+    
+    /**
+     * Write all changed positions.
+     */
+    public synchronized void flush() {
+        int num = 0;
+        for (Cursor c : cursors) {
+            if (c.dirty) {
+                dao.put(c.state);
+                c.dirty = false;
+                num++;
+            }
+        }
+        lastFlush = System.currentTimeMillis();
+        log.debug("flush: " + num + " of " + cursors.size());
+    }
+    
+    /**
+     * Position of one reader: chunks are numbered from 1 in iteration order.
+     */
+    public class Cursor {
+        final HarvestState state;
+        private long lastSeq = 0L;
+        private long committedSeq = 0L;
+        private final TreeMap<Long, Long> written = new TreeMap<>();
+        private boolean readerDone = false;
+        private boolean dirty = false;
+        
+        Cursor(HarvestState state) {
+            this.state = state;
+        }
+        
+        /**
+         * @return sequence number for the next chunk from this reader
+         */
+        public long nextSeq() {
+            synchronized (MigrateCheckpoint.this) {
+                return ++lastSeq;
+            }
+        }
+    }
+    
+    private class FlushHook implements Runnable {
+        @Override
+        public void run() {
+            try {
+                flush();
+                log.info("checkpoint flushed");
+            } catch (Exception ex) {
+                log.error("failed to flush checkpoint on shutdown", ex);
+            }
+        }
+    }
+}
@@ -68,26 +68,59 @@
 package org.opencadc.vault.migrate;
 
 import ca.nrc.cadc.date.DateUtil;
+import ca.nrc.cadc.db.DBUtil;
+import ca.nrc.cadc.db.TransactionManager;
 import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
 import org.apache.log4j.Logger;
 import org.opencadc.inventory.db.HarvestState;
 import org.opencadc.inventory.db.HarvestStateDAO;
 import org.opencadc.vault.NodePersistenceImpl;
 import org.opencadc.vospace.DeletedNodeEvent;
 import org.opencadc.vospace.db.NodeDAO;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 
 /**
- *
+ * Replicate node deletions from the source DeletedNodeEvent table. Events are 
+ * applied in batches: one DELETE for all nodes in the batch and one update of the
+ * migrate-deletions HarvestState, in a single transaction. Nodes that are not in the
+ * destination are simply not found by the delete. In follow mode the task keeps
+ * polling for new events: the interval is reset to the minimum when events are found
+ * and doubles (up to the maximum) while idle.
+ * 
  * @author pdowler
  */
 public class MigrateDeletionsTask implements Runnable {
     private static final Logger log = Logger.getLogger(MigrateDeletionsTask.class);
 
+    private static final String STATE_NAME = "migrate-deletions";
+    private static final URI STATE_RESOURCE = URI.create("db:sybase:vopspace2");
+    
     private final NodePersistenceImpl dest;
     private final DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
     boolean dryrun;
+    boolean follow = false;
+    int batchSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+    int fetchSize = 1000;
+    boolean paged = false;
+    long minInterval = 1000L; // ms
+    long maxInterval = 60 * 1000L; // ms
+    
+    private volatile boolean stop = false;
+    private JdbcTemplate jdbc;
     
     public MigrateDeletionsTask(NodePersistenceImpl dest) {
         this.dest = dest;
@@ -101,32 +134,184 @@ public class MigrateDeletionsTask implements Runnable {
         nodeDAO.setConfig(config);
         
         HarvestStateDAO dao = new HarvestStateDAO(nodeDAO);
-        dao.setUpdateBufferCount(1000);
-        HarvestState state = dao.get("migrate-deletions", URI.create("db:sybase:vopspace2"));
+        try {
+            // same data source as the NodeDAO so deletes join its transactions
+            DataSource ds = DBUtil.findJNDIDataSource(Main.DEST_DATASOURCE);
+            this.jdbc = new JdbcTemplate(ds);
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + Main.DEST_DATASOURCE + " via JNDI");
+        }
+        HarvestState state = dao.get(STATE_NAME, STATE_RESOURCE);
+        if (state == null) {
+            state = new HarvestState(STATE_NAME, STATE_RESOURCE);
+        }
+        
+        Thread hook = null;
+        if (follow) {
+            hook = new Thread(new StopHook(Thread.currentThread()), "MigrateDeletionsTask.stop");
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
         
-        log.info("START");
+        log.info("START" + (follow ? " follow" : ""));
+        long total = 0;
+        long interval = minInterval;
+        boolean done = false;
+        while (!done) {
+            long num = 0;
+            long start = System.currentTimeMillis();
+            try {
+                num = drain(nodeDAO, dao, state);
+            } catch (Exception ex) {
+                log.error("FAIL", ex);
+                done = !follow;
+            } finally {
+                long dt = System.currentTimeMillis() - start;
+                dt = dt / 1000L;
+                total += num;
+                if (num > 0 || !follow) {
+                    log.info("DONE num=" + num + " dt=" + dt + "sec");
+                }
+            }
+            
+            if (!follow || stop) {
+                done = true;
+            } else {
+                // adaptive poll: stay fast while events arrive, back off when idle
+                if (num > 0) {
+                    interval = minInterval;
+                } else {
+                    interval = Math.min(2 * interval, maxInterval);
+                }
+                log.debug("poll interval: " + interval + "ms");
+                try {
+                    pause(interval);
+                } catch (InterruptedException ex) {
+                    done = true;
+                }
+                done = done || stop;
+            }
+        }
+        if (follow) {
+            log.info("STOP total=" + total);
+        }
+    }
+    
+    // process all available events; returns number of events
+    private long drain(NodeDAO nodeDAO, HarvestStateDAO dao, HarvestState state) throws Exception {
         long num = 0;
-        long start = System.currentTimeMillis();
-        try (SourceDeletedNodeEventIterator iter = new SourceDeletedNodeEventIterator(state.curLastModified, state.curID)) {
-            while (iter.hasNext()) {
+        List<DeletedNodeEvent> batch = new ArrayList<>(batchSize);
+        try (SourceDeletedNodeEventIterator iter = new SourceDeletedNodeEventIterator(state.curLastModified, state.curID, fetchSize, paged)) {
+            while (!stop && iter.hasNext()) {
                 DeletedNodeEvent dae = iter.next();
                 log.info("delete: " + dae.getNodeType() + " " + dae.getID() + " " + df.format(dae.getLastModified()));
-                if (!dryrun) {
-                    state.curID = dae.getID();
-                    state.curLastModified = dae.getLastModified();
-                    // TODO: txn??
-                    nodeDAO.delete(dae.getID());
-                    dao.put(state);
+                batch.add(dae);
+                if (batch.size() >= batchSize) {
+                    deleteBatch(nodeDAO, dao, state, batch);
                 }
                 num++;
             }
-        } catch (Exception ex) {
-            log.error("FAIL", ex);
-        } finally {
-            dao.flushBufferedState();
-            long dt = System.currentTimeMillis() - start;
-            dt = dt / 1000L;
-            log.info("DONE num=" + num + " dt="+dt + "sec");
+            deleteBatch(nodeDAO, dao, state, batch); // partial last batch
+        }
+        return num;
+    }
+    
+    // delete a batch of nodes with one statement and advance the state in the same transaction
+    private void deleteBatch(NodeDAO nodeDAO, HarvestStateDAO dao, HarvestState state, List<DeletedNodeEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (!dryrun) {
+            // coalesce repeated events for the same node
+            Set<UUID> ids = new LinkedHashSet<>();
+            for (DeletedNodeEvent dae : batch) {
+                ids.add(dae.getID());
+            }
+            DeletedNodeEvent last = batch.get(batch.size() - 1);
+            final UUID prevID = state.curID;
+            final Date prevLastModified = state.curLastModified;
+            
+            long t1 = System.currentTimeMillis();
+            TransactionManager txn = nodeDAO.getTransactionManager();
+            try {
+                txn.startTransaction();
+                int n = jdbc.update(new DeleteStatement(ids));
+                state.curID = last.getID();
+                state.curLastModified = last.getLastModified();
+                dao.put(state);
+                txn.commitTransaction();
+                long dt = System.currentTimeMillis() - t1;
+                log.info("delete batch: events=" + batch.size() + " nodes=" + ids.size() + " deleted=" + n 
+                        + " not-found=" + (ids.size() - n) + " " + dt + "ms");
+            } catch (RuntimeException ex) {
+                log.debug("batch delete failed: rollback " + ids.size() + " nodes");
+                txn.rollbackTransaction();
+                state.curID = prevID;
+                state.curLastModified = prevLastModified;
+                throw ex;
+            } finally {
+                if (txn.isOpen()) {
+                    log.error("BUG - open transaction in finally");
+                    txn.rollbackTransaction();
+                }
+            }
+        }
+        batch.clear();
+    }
+    
+    private static class DeleteStatement implements PreparedStatementCreator {
+        private final Set<UUID> ids;
+
+        DeleteStatement(Set<UUID> ids) {
+            this.ids = ids;
+        }
+        
+        @Override
+        public PreparedStatement createPreparedStatement(Connection conn) throws SQLException {
+            StringBuilder sb = new StringBuilder();
+            sb.append("DELETE FROM ").append(Main.DEST_SCHEMA).append(".Node WHERE id IN (");
+            for (int i = 0; i < ids.size(); i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append("?");
+            }
+            sb.append(")");
+            String sql = sb.toString();
+            log.debug("SQL: " + sql);
+            PreparedStatement prep = conn.prepareStatement(sql);
+            int col = 1;
+            for (UUID id : ids) {
+                prep.setObject(col++, id);
+            }
+            return prep;
+        }
+    }
+    
+    private synchronized void pause(long interval) throws InterruptedException {
+        if (!stop) {
+            wait(interval);
+        }
+    }
+    
+    // SIGTERM: stop after the current event and wait for state to be flushed
+    private class StopHook implements Runnable {
+        private final Thread runner;
+        
+        StopHook(Thread runner) {
+            this.runner = runner;
+        }
+        
+        @Override
+        public void run() {
+            synchronized (MigrateDeletionsTask.this) {
+                stop = true;
+                MigrateDeletionsTask.this.notifyAll();
+            }
+            try {
+                runner.join(30 * 1000L);
+            } catch (InterruptedException ignore) {
+                log.debug("interrupted waiting for " + runner.getName());
+            }
         }
     }
 }
@@ -0,0 +1,212 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import org.apache.log4j.Logger;
+
+/**
+ * Java Flight Recorder events for the migration hot paths. The events are disabled
+ * by default; startRecording enables them in a recording that also uses the JDK 
+ * default settings, so a single recording shows which container, query, or batch a
+ * slow period belongs to.
+ * 
+ * <p>The jdk.jfr classes are not available on all supported JREs: callers must check
+ * Support.AVAILABLE before using this class or creating an event.
+ * 
+ * @author pdowler
+ */
+public class MigrateEvents {
+    private static final Logger log = Logger.getLogger(MigrateEvents.class);
+
+    private static Recording recording;
+    
+    private MigrateEvents() { 
+    }
+    
+    /**
+     * JFR availability check that does not reference jdk.jfr (or the enclosing class),
+     * so it is safe to load on a JRE without JFR.
+     */
+    static final class Support {
+        static final boolean AVAILABLE = isAvailable();
+        
+        private Support() {
+        }
+        
+        private static boolean isAvailable() {
+            try {
+                Class.forName("jdk.jfr.Event", false, Support.class.getClassLoader());
+                return true;
+            } catch (ClassNotFoundException | LinkageError ex) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Start a recording with the migration events enabled.
+     * 
+     * @param dest file to write when the recording is stopped
+     * @throws IOException failure to configure the recording
+     */
+    public static synchronized void startRecording(File dest) throws IOException {
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException ex) {
+            throw new IOException("failed to read JFR default configuration", ex);
+        }
+        recording.setName("vault-migrate");
+        recording.enable(ChildBatchQuery.class);
+        recording.enable(Convert.class);
+        recording.enable(QueueWait.class);
+        recording.enable(DestPut.class);
+        recording.setDestination(dest.toPath());
+        recording.start();
+        log.info("JFR recording: " + dest.getAbsolutePath());
+    }
+    
+    /**
+     * Stop the recording and write the file.
+     */
+    public static synchronized void stopRecording() {
+        if (recording != null) {
+            recording.stop();
+            recording.close();
+            recording = null;
+        }
+    }
+    
+    @Name("org.opencadc.vault.migrate.ChildBatchQuery")
+    @Label("Child Batch Query")
+    @Category({"vault-migrate", "source"})
+    @Description("Source query for one batch of child nodes (and their properties in scoped mode)")
+    @Enabled(false)
+    static class ChildBatchQuery extends Event {
+        @Label("Container")
+        String container;
+        
+        @Label("Start")
+        String start;
+        
+        @Label("Rows")
+        int rows;
+    }
+    
+    @Name("org.opencadc.vault.migrate.Convert")
+    @Label("Convert")
+    @Category({"vault-migrate", "convert"})
+    @Description("Conversion of one source node")
+    @Enabled(false)
+    static class Convert extends Event {
+        @Label("Node")
+        String node;
+        
+        @Label("Type")
+        String type;
+    }
+    
+    @Name("org.opencadc.vault.migrate.QueueWait")
+    @Label("Queue Wait")
+    @Category({"vault-migrate", "pipeline"})
+    @Description("Time a pipeline stage was blocked on a full or empty queue")
+    @Enabled(false)
+    static class QueueWait extends Event {
+        @Label("Stage")
+        String stage;
+        
+        @Label("Operation")
+        String operation;
+    }
+    
+    @Name("org.opencadc.vault.migrate.DestPut")
+    @Label("Destination Put")
+    @Category({"vault-migrate", "destination"})
+    @Description("Destination put of one batch")
+    @Enabled(false)
+    static class DestPut extends Event {
+        @Label("Task")
+        String task;
+        
+        @Label("Nodes")
+        int nodes;
+        
+        @Label("Mode")
+        String mode;
+    }
+}
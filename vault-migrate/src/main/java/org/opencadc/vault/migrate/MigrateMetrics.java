@@ -0,0 +1,468 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.log4j.Logger;
+
+/**
+ * Live metrics for a running migration: latency histograms for the source query, 
+ * convert, and destination put steps, pipeline queue depth, node rates per task and
+ * overall, and counts of content skipped by NodeConvert. Metrics are always collected;
+ * they can be exposed over HTTP (Prometheus text format at /metrics) and written to
+ * a JSON snapshot file on a fixed interval.
+ * 
+ * @author pdowler
+ */
+public class MigrateMetrics {
+    private static final Logger log = Logger.getLogger(MigrateMetrics.class);
+
+    private static final MigrateMetrics INSTANCE = new MigrateMetrics();
+    
+    // histogram bucket upper bounds in seconds
+    private static final double[] BUCKETS = new double[] {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+    };
+    
+    final Histogram sourceQuery = new Histogram("vault_migrate_source_query_seconds", "source child batch and property queries");
+    final Histogram convert = new Histogram("vault_migrate_convert_seconds", "conversion of one node");
+    final Histogram destPut = new Histogram("vault_migrate_dest_put_seconds", "destination put of one batch");
+    
+    private final long start = System.currentTimeMillis();
+    private final LongAdder nodes = new LongAdder();
+    private final Map<String, LongAdder> skipped = new ConcurrentHashMap<>();
+    private final Map<String, TaskRate> tasks = new ConcurrentHashMap<>();
+    private final Map<String, BlockingQueue<?>> queues = new ConcurrentHashMap<>();
+    
+    private HttpServer server;
+    private ScheduledExecutorService snapshots;
+    private SnapshotWriter snapshotWriter;
+    
+    private MigrateMetrics() { 
+    }
+    
+    /**
+     * @return the metrics for this process
+     */
+    public static MigrateMetrics get() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Count content skipped during conversion.
+     * 
+     * @param reason short reason label
+     */
+    public void skip(String reason) {
+        skipped.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Count nodes skipped by the writers.
+     * 
+     * @param reason short reason label
+     * @param num number of nodes
+     */
+    public void skip(String reason, long num) {
+        skipped.computeIfAbsent(reason, k -> new LongAdder()).add(num);
+    }
+    
+    /**
+     * Start tracking the node rate of a task.
+     * 
+     * @param name task name
+     * @return task rate to record written nodes
+     */
+    public TaskRate startTask(String name) {
+        TaskRate ret = new TaskRate();
+        tasks.put(name, ret);
+        return ret;
+    }
+    
+    public void endTask(String name) {
+        tasks.remove(name);
+    }
+    
+    /**
+     * Record written nodes.
+     * 
+     * @param task task rate or null
+     * @param num number of nodes
+     */
+    public void written(TaskRate task, int num) {
+        nodes.add(num);
+        if (task != null) {
+            task.nodes.addAndGet(num);
+        }
+    }
+    
+    public void addQueue(String name, BlockingQueue<?> queue) {
+        queues.put(name, queue);
+    }
+    
+    public void removeQueue(String name) {
+        queues.remove(name);
+    }
+    
+    /**
+     * Serve metrics in Prometheus text format at http://localhost:port/metrics. The
+     * server only listens on the loopback interface; use a local scraper or an ssh
+     * tunnel for remote access.
+     * 
+     * @param port listen port
+     * @throws IOException failure to bind the port
+     */
+    public synchronized void startServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(Executors.newSingleThreadExecutor(new DaemonThreadFactory("MigrateMetrics.http")));
+        server.start();
+        log.info("metrics: http://localhost:" + port + "/metrics");
+    }
+    
+    /**
+     * Write a JSON snapshot to the specified file on a fixed interval.
+     * 
+     * @param f output file (replaced on each write)
+     * @param interval seconds between snapshots
+     */
+    public synchronized void startSnapshots(File f, long interval) {
+        this.snapshots = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("MigrateMetrics.snapshot"));
+        this.snapshotWriter = new SnapshotWriter(f);
+        snapshots.scheduleAtFixedRate(snapshotWriter, interval, interval, TimeUnit.SECONDS);
+        log.info("metrics: " + f.getAbsolutePath() + " every " + interval + " sec");
+    }
+    
+    /**
+     * Stop the HTTP server and snapshot writer; writes a final snapshot.
+     */
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+            snapshotWriter.run();
+        }
+    }
+    
+    private double elapsed(long since) {
+        return (System.currentTimeMillis() - since) / 1000.0;
+    }
+    
+    /**
+     * @return current metrics in Prometheus text exposition format
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        double sec = elapsed(start);
+        long total = nodes.sum();
+        sb.append("# HELP vault_migrate_nodes_total nodes written to the destination\n");
+        sb.append("# TYPE vault_migrate_nodes_total counter\n");
+        sb.append("vault_migrate_nodes_total ").append(total).append("\n");
+        sb.append("# HELP vault_migrate_rate nodes/sec since start\n");
+        sb.append("# TYPE vault_migrate_rate gauge\n");
+        sb.append("vault_migrate_rate ").append(rate(total, sec)).append("\n");
+        
+        sourceQuery.appendPrometheus(sb);
+        convert.appendPrometheus(sb);
+        destPut.appendPrometheus(sb);
+        
+        sb.append("# HELP vault_migrate_task_nodes nodes written by an active task\n");
+        sb.append("# TYPE vault_migrate_task_nodes gauge\n");
+        Map<String, TaskRate> tm = new TreeMap<>(tasks);
+        for (Map.Entry<String, TaskRate> me : tm.entrySet()) {
+            sb.append("vault_migrate_task_nodes{task=\"").append(escape(me.getKey())).append("\"} ")
+                    .append(me.getValue().nodes.get()).append("\n");
+        }
+        sb.append("# HELP vault_migrate_task_rate nodes/sec of an active task\n");
+        sb.append("# TYPE vault_migrate_task_rate gauge\n");
+        for (Map.Entry<String, TaskRate> me : tm.entrySet()) {
+            TaskRate tr = me.getValue();
+            sb.append("vault_migrate_task_rate{task=\"").append(escape(me.getKey())).append("\"} ")
+                    .append(rate(tr.nodes.get(), elapsed(tr.start))).append("\n");
+        }
+        sb.append("# HELP vault_migrate_queue_depth chunks waiting in a pipeline queue\n");
+        sb.append("# TYPE vault_migrate_queue_depth gauge\n");
+        for (Map.Entry<String, BlockingQueue<?>> me : new TreeMap<>(queues).entrySet()) {
+            sb.append("vault_migrate_queue_depth{queue=\"").append(escape(me.getKey())).append("\"} ")
+                    .append(me.getValue().size()).append("\n");
+        }
+        sb.append("# HELP vault_migrate_skipped_total content skipped during conversion\n");
+        sb.append("# TYPE vault_migrate_skipped_total counter\n");
+        for (Map.Entry<String, LongAdder> me : new TreeMap<>(skipped).entrySet()) {
+            sb.append("vault_migrate_skipped_total{reason=\"").append(escape(me.getKey())).append("\"} ")
+                    .append(me.getValue().sum()).append("\n");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @return current metrics as a JSON document
+     */
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder();
+        double sec = elapsed(start);
+        long total = nodes.sum();
+        sb.append("{\n");
+        sb.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+        sb.append("  \"elapsed\": ").append(sec).append(",\n");
+        sb.append("  \"nodes\": ").append(total).append(",\n");
+        sb.append("  \"rate\": ").append(rate(total, sec)).append(",\n");
+        sb.append("  \"latency\": {\n");
+        sourceQuery.appendJSON(sb, "source-query").append(",\n");
+        convert.appendJSON(sb, "convert").append(",\n");
+        destPut.appendJSON(sb, "dest-put").append("\n");
+        sb.append("  },\n");
+        sb.append("  \"tasks\": {");
+        String sep = "\n";
+        for (Map.Entry<String, TaskRate> me : new TreeMap<>(tasks).entrySet()) {
+            TaskRate tr = me.getValue();
+            sb.append(sep).append("    \"").append(escape(me.getKey())).append("\": {\"nodes\": ").append(tr.nodes.get())
+                    .append(", \"rate\": ").append(rate(tr.nodes.get(), elapsed(tr.start))).append("}");
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+        sb.append("  \"queues\": {");
+        sep = "\n";
+        for (Map.Entry<String, BlockingQueue<?>> me : new TreeMap<>(queues).entrySet()) {
+            sb.append(sep).append("    \"").append(escape(me.getKey())).append("\": ").append(me.getValue().size());
+            sep = ",\n";
+        }
+        sb.append("\n  },\n");
+        sb.append("  \"skipped\": {");
+        sep = "\n";
+        for (Map.Entry<String, LongAdder> me : new TreeMap<>(skipped).entrySet()) {
+            sb.append(sep).append("    \"").append(escape(me.getKey())).append("\": ").append(me.getValue().sum());
+            sep = ",\n";
+        }
+        sb.append("\n  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+    
+    private static long rate(long num, double sec) {
+        if (sec <= 0.0) {
+            return 0L;
+        }
+        return (long) (num / sec);
+    }
+    
+    // escape for both prometheus label values and JSON strings
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    public static class TaskRate {
+        private final long start = System.currentTimeMillis();
+        private final AtomicLong nodes = new AtomicLong();
+    }
+    
+    /**
+     * Latency histogram with fixed buckets.
+     */
+    public static class Histogram {
+        private final String name;
+        private final String help;
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sum = new LongAdder(); // nanos
+        
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+        
+        /**
+         * @param nanos duration of one operation
+         */
+        public void observe(long nanos) {
+            double sec = nanos / 1.0e9;
+            int i = 0;
+            while (i < BUCKETS.length && sec > BUCKETS[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(nanos);
+        }
+        
+        void appendPrometheus(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(" ").append(help).append("\n");
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cum = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                cum += counts[i].sum();
+                String le = (i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf");
+                sb.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cum).append("\n");
+            }
+            sb.append(name).append("_sum ").append(sum.sum() / 1.0e9).append("\n");
+            sb.append(name).append("_count ").append(cum).append("\n");
+        }
+        
+        StringBuilder appendJSON(StringBuilder sb, String key) {
+            long num = 0L;
+            for (LongAdder c : counts) {
+                num += c.sum();
+            }
+            double avg = (num > 0 ? sum.sum() / (num * 1.0e6) : 0.0);
+            sb.append("    \"").append(key).append("\": {\"count\": ").append(num)
+                    .append(", \"avg-ms\": ").append(String.format("%.3f", avg))
+                    .append(", \"p50-ms\": ").append(percentile(num, 0.50))
+                    .append(", \"p99-ms\": ").append(percentile(num, 0.99)).append("}");
+            return sb;
+        }
+        
+        // upper bound of the bucket containing the percentile, in ms
+        private double percentile(long num, double p) {
+            if (num == 0) {
+                return 0.0;
+            }
+            long target = (long) Math.ceil(p * num);
+            long cum = 0L;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cum += counts[i].sum();
+                if (cum >= target) {
+                    return BUCKETS[i] * 1000.0;
+                }
+            }
+            return BUCKETS[BUCKETS.length - 1] * 1000.0;
+        }
+    }
+    
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange he) throws IOException {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            he.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            he.sendResponseHeaders(200, body.length);
+            try (OutputStream os = he.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    private class SnapshotWriter implements Runnable {
+        private final File dest;
+        
+        SnapshotWriter(File dest) {
+            this.dest = dest;
+        }
+        
+        @Override
+        public void run() {
+            File tmp = new File(dest.getAbsolutePath() + ".tmp");
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                os.write(toJSON().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                log.warn("failed to write metrics snapshot: " + ex);
+                return;
+            }
+            if (!tmp.renameTo(dest)) {
+                log.warn("failed to rename " + tmp + " to " + dest);
+            }
+        }
+    }
+    
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -67,174 +67,173 @@
 
 package org.opencadc.vault.migrate;
 
-import ca.nrc.cadc.vos.NodeProperty;
-import ca.nrc.cadc.vos.VOSURI;
 import ca.nrc.cadc.vos.server.db.DatabaseNodePersistence;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.Set;
 import org.apache.log4j.Logger;
+import org.opencadc.inventory.db.HarvestState;
 import org.opencadc.vault.NodePersistenceImpl;
-import org.opencadc.vospace.Node;
 
 /**
- * Job to migrate a single container node (recursive).
+ * Job to migrate a single container node (recursive). The work is done by a
+ * NodePipeline with the configured number of readers, converters, and writers.
  * 
  * @author pdowler
  */
 public class MigrateNodesTask implements Runnable {
     private static final Logger log = Logger.getLogger(MigrateNodesTask.class);
 
-    private static final boolean USE_READ_QUEUE = true;
-    
     private final DatabaseNodePersistence src;
     private final NodePersistenceImpl dest;
     private final ca.nrc.cadc.vos.ContainerNode node;
-    private final Map<Long,List<NodeProperty>> propMap;
+    private final PropertyLookup propCache;
     
     boolean dryrun = false;
+    int batchSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+    int pageSize = 1000;
+    BulkNodeLoader bulk;
+    TaskQueue tasks;
+    MigrateCheckpoint checkpoint;
+    WriteLimiter limiter;
+    HarvestState resumeState;
+    boolean skipUnchanged = false;
+    DeadLetterFile deadLetters;
+    MigrateWorkUnits workUnits; // sharded mode
+    MigrateWorkUnits.WorkUnit unit; // the unit this task migrates
+    Set<URI> exclude = Collections.emptySet();
+    
+    int readers = 1;
+    int converters = 1;
+    int writers = 1;
+    
+    private int numSplit = 0;
     
     public MigrateNodesTask(DatabaseNodePersistence src, NodePersistenceImpl dest, 
-            ca.nrc.cadc.vos.ContainerNode node, Map<Long,List<NodeProperty>> propMap) {
+            ca.nrc.cadc.vos.ContainerNode node, PropertyLookup propCache) {
         this.src = src;
         this.dest = dest;
         this.node = node;
-        this.propMap = propMap;
+        this.propCache = propCache;
+    }
+
+    // create a task to migrate a container split off from this one
+    private MigrateNodesTask spawn(ca.nrc.cadc.vos.ContainerNode cn) {
+        MigrateNodesTask ret = new MigrateNodesTask(src, dest, cn, propCache);
+        ret.dryrun = dryrun;
+        ret.batchSize = batchSize;
+        ret.pageSize = pageSize;
+        ret.readers = readers;
+        ret.converters = converters;
+        ret.writers = writers;
+        ret.bulk = bulk;
+        ret.tasks = tasks;
+        ret.checkpoint = checkpoint;
+        ret.limiter = limiter;
+        ret.skipUnchanged = skipUnchanged;
+        ret.deadLetters = deadLetters;
+        return ret;
+    }
+    
+    /**
+     * @return true if this task migrates a work unit whose lease was lost
+     */
+    boolean isLost() {
+        return unit != null && unit.isLost();
+    }
+    
+    // hand off a queued container to an idle worker
+    synchronized void trySplit(SourceNodeIterator srcIter) throws InterruptedException {
+        if (workUnits != null) {
+            // sharded: register a new unit that any process can claim
+            if (tasks.hasIdleWorker() || workUnits.isStarved()) {
+                ca.nrc.cadc.vos.ContainerNode cn = srcIter.split();
+                if (cn != null) {
+                    log.info("split " + node.getName() + ": " + cn.getUri().getPath());
+                    workUnits.register(cn.getUri().getURI());
+                    tasks.reserve(); // wake up the claim loop; no more splits for this idle worker
+                    numSplit++;
+                }
+            }
+            return;
+        }
+        if (tasks != null && tasks.hasIdleWorker()) {
+            ca.nrc.cadc.vos.ContainerNode cn = srcIter.split();
+            if (cn != null) {
+                log.info("split " + node.getName() + ": " + cn.getUri().getPath());
+                tasks.submit(spawn(cn));
+                numSplit++;
+            }
+        }
     }
 
     @Override
     public void run() {
-        NodeConvert conv = new NodeConvert(dest.getRootNode().getID());
-        URI curURI = null;
+        if (tasks != null) {
+            tasks.started();
+        }
+        NodePipeline pipeline = new NodePipeline(src, dest, propCache, this);
+        pipeline.readers = readers;
+        pipeline.converters = converters;
+        pipeline.writers = writers;
+        pipeline.chunkSize = batchSize;
+        pipeline.pageSize = pageSize;
+        pipeline.dryrun = dryrun;
+        pipeline.skipUnchanged = skipUnchanged;
+        pipeline.deadLetters = deadLetters;
+        pipeline.bulk = bulk;
+        pipeline.checkpoint = checkpoint;
+        pipeline.limiter = limiter;
+        pipeline.resumeState = resumeState;
+        pipeline.exclude = exclude;
+        boolean success = false;
         try {
-            int num = 0;
             long start = System.currentTimeMillis();
-            long pmin = Long.MAX_VALUE;
-            long pmax = 0L;
-            long ptotal = 0L;
-
-            SourceNodeIterator srcIter = new SourceNodeIterator(src, propMap);
-            srcIter.setContainer(node);
-            if (USE_READ_QUEUE) {
-                LinkedBlockingQueue<ca.nrc.cadc.vos.Node> queue = new LinkedBlockingQueue<>(2000);
-                NodeProducer producer = new NodeProducer(srcIter, queue);
-                final String fmt = "%d %s %s";
-                boolean done = false;
-                while (!done) {
-                    ca.nrc.cadc.vos.Node sn = queue.take(); // blocks
-                    curURI = sn.getUri().getURI();
-                    if (producer.terminate == sn) {
-                        done = true;
-                    } else {
-                        Node out = conv.convert(sn);
-                        num++;
-                        log.info(String.format(fmt, num, sn.getClass().getSimpleName(), sn.getUri().getPath()));
-                        if (!dryrun) {
-                            long t1 = System.nanoTime();
-                            dest.put(out);
-                            long pt = System.nanoTime() - t1;
-                            ptotal += pt;
-                            pmin = Math.min(pmin, pt);
-                            pmax = Math.max(pmax, pt);
-                        }
-                    }
-                }
-            } else {
-                // direct src iterator
-                final String fmt = "%d %s %s";
-                while (srcIter.hasNext()) {
-                    ca.nrc.cadc.vos.Node sn = srcIter.next();
-                    curURI = sn.getUri().getURI();
-                    Node out = conv.convert(sn);
-                    num++;
-                    log.info(String.format(fmt, num, sn.getClass().getSimpleName(), sn.getUri().getPath()));
-                    if (!dryrun) {
-                        long t1 = System.nanoTime();
-                        dest.put(out);
-                        long pt = System.nanoTime() - t1;
-                        ptotal += pt;
-                        pmin = Math.min(pmin, pt);
-                        pmax = Math.max(pmax, pt);
-                    }
-                }
-            }
-            log.info("summary " + node.getName() + " source-maxRecursionQueueSize: " + srcIter.maxRecursionQueueSize);
+            pipeline.run(node);
+            long totalTime = System.currentTimeMillis() - start;
             
-
-            if (!dryrun) {
+            log.info("summary " + node.getName() + " source-maxRecursionQueueSize: " + pipeline.maxRecursionQueueSize
+                    + " split: " + numSplit);
+            log.info("summary " + node.getName() + " " + pipeline.read.summary(readers));
+            log.info("summary " + node.getName() + " " + pipeline.convert.summary(converters));
+            log.info("summary " + node.getName() + " " + pipeline.write.summary(writers));
+            long num = pipeline.write.getNodes();
+            if (!dryrun && num > 0) {
                 final String putFmt = "summary %s %s: %.2f ms";
-                log.info(String.format(putFmt, node.getName(), "min-put", ((double) pmin) / 1.0e6));
-                log.info(String.format(putFmt, node.getName(), "max-put", ((double) pmax) / 1.0e6));
-                log.info(String.format(putFmt, node.getName(), "avg-put", ((double) ptotal) / (num * 1.0e6)));
-                long totalPut = ptotal / (1000L * 1000L); // ms
-                long totalTime = System.currentTimeMillis() - start;
-                long rate = (long) (1000L * num / totalTime);
-                log.info(String.format("summary %s count: %d source-query: %d dest-put: %d total-time: %d ms rate: %d nodes/sec", 
-                        node.getName(), num, srcIter.timeQuerying, totalPut, totalTime, rate));
-            } else {
-                log.info("summary " + node.getName() + " source-timeQuerying: " + srcIter.timeQuerying + "ms");
+                double busy = pipeline.write.getBusy();
+                log.info(String.format(putFmt, node.getName(), "avg-batch", busy / (pipeline.write.getChunks() * 1.0e6)));
+                log.info(String.format(putFmt, node.getName(), "avg-put", busy / (num * 1.0e6)));
+            }
+            if (limiter != null) {
+                log.info("summary " + node.getName() + " write-" + limiter);
             }
+            if (skipUnchanged) {
+                log.info("summary " + node.getName() + " unchanged: " + pipeline.numUnchanged.get());
+            }
+            long rate = (totalTime > 0 ? 1000L * num / totalTime : 0L);
+            log.info(String.format("summary %s count: %d batches: %d batch-size: %d source-query: %d source-wait: %d "
+                    + "dest-put: %d total-time: %d ms rate: %d nodes/sec", 
+                    node.getName(), num, pipeline.write.getChunks(), batchSize, pipeline.timeQuerying.get(), 
+                    pipeline.timeWaiting.get(), pipeline.write.getBusy() / (1000L * 1000L), totalTime, rate));
+            success = true;
         } catch (InterruptedException ex) {
             log.warn("MigrateWorker terminating: interrupt()");
         } catch (IllegalArgumentException | URISyntaxException ex) {
-            log.error("FAIL bad content at " + curURI, ex);
+            log.error("FAIL bad content at " + pipeline.getFailedAt(), ex);
         } catch (Exception ex) {
-            log.error("FAIL unexpected at " + curURI, ex);
-        }
-    }
-
-    private class NodeProducer implements Runnable {
-        private Iterator<ca.nrc.cadc.vos.Node> inner;
-        private final LinkedBlockingQueue<ca.nrc.cadc.vos.Node> queue;
-        ca.nrc.cadc.vos.Node terminate = new TerminateNode();
-
-        public NodeProducer(Iterator<ca.nrc.cadc.vos.Node> inner,LinkedBlockingQueue<ca.nrc.cadc.vos.Node> queue) {
-            this.inner = inner;
-            this.queue = queue;
-            Thread bg = new Thread(this);
-            bg.setDaemon(true);
-            bg.start();
-        }
-        
-        @Override
-        public void run() {
-            log.warn("NodeProducer.run() START");
-            int num = 0;
-            long t1 = System.currentTimeMillis();
-            while (inner.hasNext()) {
+            log.error("FAIL unexpected at " + pipeline.getFailedAt(), ex);
+        } finally {
+            if (unit != null) {
                 try {
-                    queue.put(inner.next()); // block at capacity
-                    num++;
-                    long t2 = System.currentTimeMillis();
-                    long dt = t2 - t1;
-                    if (dt > 120 * 1000L) { // 2 min
-                        int qs = queue.size();
-                        log.info("NodeProducer.summary queueSize=" + qs + " num=" + num);
-                        t1 = t2;
-                    }
-                } catch (InterruptedException ex) {
-                    log.warn("NodeProducer.run() interrupted");
+                    workUnits.done(unit, success);
                 } catch (Exception ex) {
-                    log.error("NodeProducer.run() FAIL", ex);
+                    log.error("failed to release work unit " + unit.uri + " (lease will expire)", ex);
                 }
             }
-            try {
-                queue.put(terminate);
-            } catch (InterruptedException ex) {
-                log.warn("NodeProducer.run() terminate interrupted");
-            } catch (Exception ex) {
-                log.error("NodeProducer.run() terminate FAIL", ex);
+            if (tasks != null) {
+                tasks.finished(node.getUri().getPath(), success);
             }
-            log.warn("NodeProducer.run() DONE num=" + num);
-        }
-    }
-    
-    private class TerminateNode extends ca.nrc.cadc.vos.LinkNode {
-        public TerminateNode() {
-            super(new VOSURI(URI.create("vos://authority~service/terminate")), URI.create("vos:terminate"));
         }
     }
 }
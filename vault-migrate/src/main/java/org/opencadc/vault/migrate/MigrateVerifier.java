@@ -0,0 +1,395 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.io.ResourceIterator;
+import ca.nrc.cadc.vos.server.db.DatabaseNodePersistence;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.opencadc.vault.NodePersistenceImpl;
+import org.opencadc.vospace.ContainerNode;
+import org.opencadc.vospace.Node;
+import org.opencadc.vospace.db.NodeDAO;
+
+/**
+ * Verify that a destination tree matches the source. Each node is hashed from the 
+ * metadata checksum of its converted form (source nodes go through NodeConvert, 
+ * destination nodes are read back with NodeDAO) so the comparison is like-for-like.
+ * Node hashes are summed into every ancestor container, which gives an order-independent
+ * Merkle-style hash per subtree. Both trees are hashed in parallel with one streaming
+ * pass each; the comparison then starts at the target and only lists the children
+ * of containers whose subtree hashes differ.
+ * 
+ * @author pdowler
+ */
+public class MigrateVerifier {
+    private static final Logger log = Logger.getLogger(MigrateVerifier.class);
+
+    private final DatabaseNodePersistence src;
+    private final NodePersistenceImpl dest;
+    private final PropertyLookup propCache;
+    private final NodeDAO nodeDAO;
+    
+    int pageSize = 1000;
+    
+    public MigrateVerifier(DatabaseNodePersistence src, NodePersistenceImpl dest, PropertyLookup propCache) {
+        this.src = src;
+        this.dest = dest;
+        this.propCache = propCache;
+        this.nodeDAO = new NodeDAO();
+        nodeDAO.setConfig(dest.getNodeDaoConfig());
+    }
+    
+    /**
+     * Compare the source and destination trees below the specified container.
+     * 
+     * @param target source container
+     * @return list of mismatched nodes (path and reason), empty if the trees match
+     * @throws Exception failure to read either tree
+     */
+    public List<String> verify(ca.nrc.cadc.vos.ContainerNode target) throws Exception {
+        final String base = target.getUri().getPath();
+        List<String> ret = new ArrayList<>();
+        ContainerNode destTarget = getDest(base);
+        if (destTarget == null) {
+            ret.add(base + " not found in destination");
+            return ret;
+        }
+        
+        long t1 = System.currentTimeMillis();
+        ExecutorService passes = Executors.newFixedThreadPool(2);
+        Map<String, long[]> srcTree;
+        Map<String, long[]> destTree;
+        try {
+            Future<Map<String, long[]>> sf = passes.submit(new SourcePass(target, base));
+            Future<Map<String, long[]>> df = passes.submit(new DestPass(destTarget));
+            srcTree = get(sf);
+            destTree = get(df);
+        } finally {
+            passes.shutdownNow();
+        }
+        long[] sr = srcTree.get("");
+        long[] dr = destTree.get("");
+        log.info(String.format("verify %s source: %d nodes destination: %d nodes %d ms", base, 
+                (sr == null ? 0 : sr[2]), (dr == null ? 0 : dr[2]), System.currentTimeMillis() - t1));
+        
+        // descend into subtrees that differ
+        LinkedList<String> differ = new LinkedList<>();
+        differ.add("");
+        int num = 0;
+        while (!differ.isEmpty()) {
+            String rel = differ.pop();
+            if (equal(srcTree.get(rel), destTree.get(rel))) {
+                continue;
+            }
+            num++;
+            Map<String, Child> sc = listSource(target, rel);
+            Map<String, Child> dc = listDest(destTarget, rel);
+            TreeSet<String> names = new TreeSet<>(sc.keySet());
+            names.addAll(dc.keySet());
+            for (String name : names) {
+                String crel = rel + "/" + name;
+                Child s = sc.get(name);
+                Child d = dc.get(name);
+                if (d == null) {
+                    ret.add(base + crel + " not found in destination");
+                } else if (s == null) {
+                    ret.add(base + crel + " not found in source");
+                } else {
+                    if (s.h1 != d.h1 || s.h2 != d.h2) {
+                        ret.add(base + crel + " metadata differs");
+                    }
+                    if (s.container && d.container) {
+                        differ.add(crel);
+                    }
+                }
+            }
+        }
+        log.info("verify " + base + " compared containers: " + num + " mismatches: " + ret.size());
+        return ret;
+    }
+    
+    private static <T> T get(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+    
+    private static boolean equal(long[] a, long[] b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a[0] == b[0] && a[1] == b[1] && a[2] == b[2];
+    }
+    
+    // add a node hash to all ancestor containers of the node (relative path)
+    private static void rollup(Map<String, long[]> tree, String rel, long[] h) {
+        int i = rel.lastIndexOf('/');
+        while (i >= 0) {
+            String anc = rel.substring(0, i);
+            long[] sum = tree.get(anc);
+            if (sum == null) {
+                sum = new long[3];
+                tree.put(anc, sum);
+            }
+            sum[0] += h[0];
+            sum[1] += h[1];
+            sum[2]++;
+            i = anc.lastIndexOf('/');
+        }
+    }
+    
+    private ContainerNode getDest(String path) {
+        ContainerNode cur = dest.getRootNode();
+        for (String n : path.split("/")) {
+            if (!n.isEmpty()) {
+                Node child = nodeDAO.get(cur, n);
+                if (!(child instanceof ContainerNode)) {
+                    return null;
+                }
+                cur = (ContainerNode) child;
+            }
+        }
+        return cur;
+    }
+    
+    private Map<String, Child> listSource(ca.nrc.cadc.vos.ContainerNode target, String rel) throws Exception {
+        ca.nrc.cadc.vos.ContainerNode cur = target;
+        for (String n : rel.split("/")) {
+            if (!n.isEmpty()) {
+                SourceThrottle.get().query();
+                src.getChild(cur, n);
+                SourceThrottle.get().rows(cur.getNodes().size());
+                ca.nrc.cadc.vos.Node child = cur.getNodes().get(0);
+                cur.getNodes().clear();
+                cur = (ca.nrc.cadc.vos.ContainerNode) child;
+            }
+        }
+        Map<String, Child> ret = new HashMap<>();
+        NodeHasher hasher = new NodeHasher();
+        SourceNodeIterator iter = new SourceNodeIterator(src, propCache);
+        try {
+            iter.setRecursive(false);
+            iter.setPageSize(pageSize);
+            iter.setContainer(cur);
+            while (iter.hasNext()) {
+                ca.nrc.cadc.vos.Node sn = iter.next();
+                ret.put(sn.getName(), new Child(hasher.hash(sn), sn instanceof ca.nrc.cadc.vos.ContainerNode));
+            }
+        } finally {
+            iter.close();
+        }
+        return ret;
+    }
+    
+    private Map<String, Child> listDest(ContainerNode target, String rel) throws Exception {
+        ContainerNode cur = getDest(target, rel);
+        Map<String, Child> ret = new HashMap<>();
+        NodeHasher hasher = new NodeHasher();
+        try (ResourceIterator<Node> iter = nodeDAO.iterator(cur, null, null)) {
+            while (iter.hasNext()) {
+                Node n = iter.next();
+                ret.put(n.getName(), new Child(hasher.hash(n), n instanceof ContainerNode));
+            }
+        }
+        return ret;
+    }
+    
+    private ContainerNode getDest(ContainerNode target, String rel) {
+        ContainerNode cur = target;
+        for (String n : rel.split("/")) {
+            if (!n.isEmpty()) {
+                cur = (ContainerNode) nodeDAO.get(cur, n);
+            }
+        }
+        return cur;
+    }
+    
+    private static class Child {
+        final long h1;
+        final long h2;
+        final boolean container;
+        
+        Child(long[] h, boolean container) {
+            this.h1 = h[0];
+            this.h2 = h[1];
+            this.container = container;
+        }
+    }
+    
+    // hash of a node: the 128-bit metadata checksum of the converted node
+    private class NodeHasher {
+        private final NodeConvert conv = new NodeConvert(dest.getRootNode().getID());
+        private final MessageDigest md;
+        
+        NodeHasher() {
+            try {
+                this.md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException("BUG: MD5 not available", ex);
+            }
+        }
+        
+        long[] hash(ca.nrc.cadc.vos.Node sn) throws Exception {
+            return hash(conv.convert(sn));
+        }
+        
+        long[] hash(Node n) {
+            URI cs = n.computeMetaChecksum(md);
+            md.reset();
+            String hex = cs.getSchemeSpecificPart();
+            return new long[] {
+                Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                Long.parseUnsignedLong(hex.substring(16, 32), 16)
+            };
+        }
+    }
+    
+    private class SourcePass implements Callable<Map<String, long[]>> {
+        private final ca.nrc.cadc.vos.ContainerNode target;
+        private final String base;
+        
+        SourcePass(ca.nrc.cadc.vos.ContainerNode target, String base) {
+            this.target = target;
+            this.base = base;
+        }
+        
+        @Override
+        public Map<String, long[]> call() throws Exception {
+            Map<String, long[]> ret = new TreeMap<>();
+            NodeHasher hasher = new NodeHasher();
+            SourceNodeIterator iter = new SourceNodeIterator(src, propCache);
+            try {
+                iter.setPageSize(pageSize);
+                iter.setContainer(target);
+                while (iter.hasNext()) {
+                    ca.nrc.cadc.vos.Node sn = iter.next();
+                    String rel = sn.getUri().getPath().substring(base.length());
+                    rollup(ret, rel, hasher.hash(sn));
+                }
+            } finally {
+                iter.close();
+            }
+            return ret;
+        }
+    }
+    
+    private class DestPass implements Callable<Map<String, long[]>> {
+        private final ContainerNode target;
+        
+        DestPass(ContainerNode target) {
+            this.target = target;
+        }
+        
+        @Override
+        public Map<String, long[]> call() throws Exception {
+            Map<String, long[]> ret = new TreeMap<>();
+            NodeHasher hasher = new NodeHasher();
+            LinkedList<ContainerNode> stack = new LinkedList<>();
+            LinkedList<String> paths = new LinkedList<>();
+            stack.push(target);
+            paths.push("");
+            while (!stack.isEmpty()) {
+                ContainerNode cur = stack.pop();
+                String rel = paths.pop();
+                try (ResourceIterator<Node> iter = nodeDAO.iterator(cur, null, null)) {
+                    while (iter.hasNext()) {
+                        Node n = iter.next();
+                        String crel = rel + "/" + n.getName();
+                        rollup(ret, crel, hasher.hash(n));
+                        if (n instanceof ContainerNode) {
+                            stack.push((ContainerNode) n);
+                            paths.push(crel);
+                        }
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+}
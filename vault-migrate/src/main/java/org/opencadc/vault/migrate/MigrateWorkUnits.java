@@ -0,0 +1,360 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.db.DBUtil;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * Work units shared by multiple vault-migrate processes. Each unit is a container that
+ * is migrated recursively, excluding the units registered below it. A process claims a
+ * ready unit with a time limited lease (row locks are skipped so concurrent claims do not
+ * block each other) and renews the leases of all its units with a heartbeat; the units 
+ * of a process that stops are claimed again by another process when the lease expires.
+ * Lease times use the database clock so hosts do not need synchronized clocks. A unit 
+ * whose lease could not be renewed (claimed by another process or no renewal for longer
+ * than the lease) is marked lost so the task migrating it can stop.
+ * 
+ * @author pdowler
+ */
+public class MigrateWorkUnits {
+    private static final Logger log = Logger.getLogger(MigrateWorkUnits.class);
+
+    private static final String TABLE = Main.DEST_SCHEMA + ".MigrateWorkUnit";
+    
+    static final String READY = "ready";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+    
+    private final JdbcTemplate jdbc;
+    private final String worker; // unique per process: leases are renewed and released by this value
+    private final String processName;
+    private ScheduledExecutorService heartbeat;
+    private volatile boolean starved = false;
+    private final Map<URI, WorkUnit> held = new ConcurrentHashMap<>(); // claimed by this process
+    private volatile long lastRenewed = System.currentTimeMillis();
+    
+    int lease = 300; // seconds
+    int maxAttempts = 3;
+    
+    public MigrateWorkUnits() {
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(Main.DEST_DATASOURCE);
+            this.jdbc = new JdbcTemplate(ds);
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + Main.DEST_DATASOURCE + " via JNDI", ex);
+        }
+        // pid@host is not unique: a restarted container can reuse it
+        this.worker = UUID.randomUUID().toString();
+        this.processName = ManagementFactory.getRuntimeMXBean().getName();
+    }
+    
+    /**
+     * @return worker ID and process name for logging
+     */
+    public String getWorker() {
+        return worker + " (" + processName + ")";
+    }
+    
+    /**
+     * Create the work unit table if necessary.
+     */
+    public void init() {
+        jdbc.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + "uri varchar(1024) NOT NULL PRIMARY KEY,"
+                + " state varchar(8) NOT NULL,"
+                + " worker varchar(256),"
+                + " leaseExpires timestamp,"
+                + " attempts integer NOT NULL,"
+                + " lastModified timestamp NOT NULL)");
+        log.info("work units: " + TABLE + " worker: " + getWorker());
+    }
+    
+    /**
+     * Register a container as a ready work unit if it is not already registered.
+     * 
+     * @param uri container URI
+     * @return true if the unit was added
+     */
+    public boolean register(URI uri) {
+        int n = jdbc.update("INSERT INTO " + TABLE + " (uri, state, attempts, lastModified)"
+                + " VALUES (?, ?, 0, now()) ON CONFLICT (uri) DO NOTHING", uri.toASCIIString(), READY);
+        if (n > 0) {
+            log.info("work unit registered: " + uri);
+            this.starved = false;
+        }
+        return n > 0;
+    }
+    
+    /**
+     * Claim the next ready unit: one that has no worker or whose lease has expired.
+     * 
+     * @return claimed unit or null if no unit is available
+     */
+    public WorkUnit claim() {
+        String sql = "UPDATE " + TABLE + " SET worker = ?, leaseExpires = now() + ? * interval '1 second',"
+                + " attempts = attempts + 1, lastModified = now()"
+                + " WHERE uri = (SELECT uri FROM " + TABLE + " WHERE state = ?"
+                + " AND (worker IS NULL OR leaseExpires < now())"
+                + " ORDER BY attempts, uri LIMIT 1 FOR UPDATE SKIP LOCKED)"
+                + " RETURNING uri, attempts";
+        List<WorkUnit> units = jdbc.query(sql, new Object[] { worker, lease, READY }, new WorkUnitMapper());
+        if (units.isEmpty()) {
+            return null;
+        }
+        WorkUnit ret = units.get(0);
+        held.put(ret.uri, ret);
+        log.info("work unit claimed: " + ret.uri + " attempt: " + ret.attempts);
+        return ret;
+    }
+    
+    /**
+     * Release a claimed unit. A failed unit is made ready again until it has been 
+     * attempted maxAttempts times.
+     * 
+     * @param u claimed unit
+     * @param success true if the unit was completely migrated
+     */
+    public void done(WorkUnit u, boolean success) {
+        held.remove(u.uri);
+        String state = DONE;
+        if (!success) {
+            state = (u.attempts < maxAttempts ? READY : FAILED);
+        }
+        int n = jdbc.update("UPDATE " + TABLE + " SET state = ?, worker = NULL, leaseExpires = NULL, lastModified = now()"
+                + " WHERE uri = ? AND worker = ?", state, u.uri.toASCIIString(), worker);
+        if (n == 0) {
+            log.warn("work unit lease lost: " + u.uri + " (claimed by another worker)");
+        } else {
+            log.info("work unit " + state + ": " + u.uri);
+        }
+    }
+    
+    /**
+     * Get all registered units below the specified container. These are migrated 
+     * separately so the walk of the container does not descend into them.
+     * 
+     * @param uri container URI
+     * @return URIs of units below the container
+     */
+    public Set<URI> getBelow(URI uri) {
+        List<String> uris = jdbc.queryForList("SELECT uri FROM " + TABLE + " WHERE uri LIKE ? ESCAPE '\\'", 
+                String.class, MigrateCheckpoint.likeBelow(uri.toASCIIString()));
+        Set<URI> ret = new TreeSet<>();
+        for (String s : uris) {
+            ret.add(URI.create(s));
+        }
+        return ret;
+    }
+    
+    /**
+     * @return true if no unit is ready or claimed
+     */
+    public boolean isFinished() {
+        Integer n = jdbc.queryForObject("SELECT count(*) FROM " + TABLE + " WHERE state = ?", 
+                new Object[] { READY }, Integer.class);
+        return n == null || n == 0;
+    }
+    
+    /**
+     * Check if other workers may be waiting for work: there was no claimable unit at the
+     * last heartbeat and no unit has been registered since. This is a hint for splitting
+     * off part of a running unit.
+     * 
+     * @return true if no claimable units
+     */
+    public boolean isStarved() {
+        return starved;
+    }
+    
+    /**
+     * Get a summary of unit states.
+     * 
+     * @return state=count for each state
+     */
+    public String getSummary() {
+        List<String> counts = jdbc.queryForList("SELECT state || '=' || count(*) FROM " + TABLE + " GROUP BY state", 
+                String.class);
+        return String.join(" ", counts);
+    }
+    
+    public synchronized void startHeartbeat() {
+        if (heartbeat == null) {
+            long period = Math.max(1, lease / 3);
+            this.heartbeat = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+            heartbeat.scheduleWithFixedDelay(new Heartbeat(), 0L, period, TimeUnit.SECONDS);
+        }
+    }
+    
+    public synchronized void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+    
+    /**
+     * A claimed unit.
+     */
+    public static class WorkUnit {
+        final URI uri;
+        final int attempts;
+        private volatile boolean lost = false;
+        
+        WorkUnit(URI uri, int attempts) {
+            this.uri = uri;
+            this.attempts = attempts;
+        }
+        
+        /**
+         * @return true if the lease was lost: another process may be migrating the unit
+         */
+        public boolean isLost() {
+            return lost;
+        }
+    }
+    
+    private void lost(WorkUnit u, String reason) {
+        if (held.remove(u.uri) != null) {
+            u.lost = true;
+            log.error("work unit lease lost: " + u.uri + " (" + reason + ")");
+        }
+    }
+    
+    private static class WorkUnitMapper implements RowMapper<WorkUnit> {
+        @Override
+        public WorkUnit mapRow(ResultSet rs, int i) throws SQLException {
+            return new WorkUnit(URI.create(rs.getString(1)), rs.getInt(2));
+        }
+    }
+    
+    // renew the leases of all units claimed by this worker and mark the ones not renewed as lost
+    private class Heartbeat implements Runnable {
+        @Override
+        public void run() {
+            List<WorkUnit> claimed = new ArrayList<>(held.values());
+            try {
+                List<String> renewed = jdbc.queryForList("UPDATE " + TABLE 
+                        + " SET leaseExpires = now() + ? * interval '1 second'"
+                        + " WHERE worker = ? AND state = ? RETURNING uri", String.class, lease, worker, READY);
+                lastRenewed = System.currentTimeMillis();
+                int n = renewed.size();
+                if (n < claimed.size()) {
+                    Set<String> ok = new HashSet<>(renewed);
+                    for (WorkUnit u : claimed) {
+                        if (!ok.contains(u.uri.toASCIIString())) {
+                            lost(u, "claimed by another worker");
+                        }
+                    }
+                }
+                Integer ready = jdbc.queryForObject("SELECT count(*) FROM " + TABLE 
+                        + " WHERE state = ? AND (worker IS NULL OR leaseExpires < now())", 
+                        new Object[] { READY }, Integer.class);
+                starved = (ready == null || ready == 0);
+                log.debug("heartbeat: renewed " + n + " leases, claimable: " + ready);
+            } catch (Exception ex) {
+                // keep trying: leases are only lost if this fails for longer than the lease
+                log.error("heartbeat failed: " + ex);
+                if (System.currentTimeMillis() - lastRenewed > 1000L * lease) {
+                    for (WorkUnit u : claimed) {
+                        lost(u, "not renewed for " + lease + " sec");
+                    }
+                }
+            }
+        }
+    }
+    
+    private static class DaemonThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MigrateWorkUnits.heartbeat");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
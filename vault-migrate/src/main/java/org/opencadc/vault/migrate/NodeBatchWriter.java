@@ -0,0 +1,176 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.db.TransactionManager;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.log4j.Logger;
+import org.opencadc.vault.NodePersistenceImpl;
+import org.opencadc.vospace.Node;
+import org.opencadc.vospace.db.NodeDAO;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessException;
+
+/**
+ * Write converted nodes to the destination in batches: all nodes in a batch
+ * are put in a single transaction so the commit cost is paid once per batch
+ * instead of once per node. Nodes are already fully converted (parentID, ownerID,
+ * storageID assigned) so they are written directly with the NodeDAO.
+ * 
+ * @author pdowler
+ */
+public class NodeBatchWriter {
+    private static final Logger log = Logger.getLogger(NodeBatchWriter.class);
+
+    /**
+     * Default number of nodes per destination transaction.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final NodeDAO nodeDAO;
+    
+    public NodeBatchWriter(NodePersistenceImpl dest) {
+        this.nodeDAO = new NodeDAO(dest.nodeOrigin);
+        nodeDAO.setConfig(dest.getNodeDaoConfig());
+    }
+    
+    /**
+     * Put a batch of nodes in a single transaction. If any put fails the whole
+     * batch is rolled back.
+     * 
+     * @param nodes batch of converted nodes
+     */
+    public void put(List<Node> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        TransactionManager txn = nodeDAO.getTransactionManager();
+        try {
+            txn.startTransaction();
+            for (Node n : nodes) {
+                nodeDAO.put(n);
+            }
+            txn.commitTransaction();
+        } catch (RuntimeException ex) {
+            log.debug("batch put failed: rollback " + nodes.size() + " nodes");
+            txn.rollbackTransaction();
+            throw ex;
+        } finally {
+            if (txn.isOpen()) {
+                log.error("BUG - open transaction in finally");
+                txn.rollbackTransaction();
+            }
+        }
+    }
+    
+    /**
+     * Put a batch of nodes; if the batch fails put each node separately and record the 
+     * nodes that fail in the dead letter file. Transient and connection failures are not
+     * recorded: they are thrown so the caller fails. If every node of a multi-node batch
+     * fails the problem is more likely the destination than the content so the first 
+     * failure is thrown and nothing is recorded.
+     * 
+     * @param nodes batch of converted nodes
+     * @param sources converted node ID to source node URI
+     * @param deadLetters dead letter file
+     */
+    public void putIsolated(List<Node> nodes, Map<UUID, URI> sources, DeadLetterFile deadLetters) {
+        try {
+            put(nodes);
+            return;
+        } catch (TransientDataAccessException | DataAccessResourceFailureException ex) {
+            throw ex; // destination problem: not the content
+        } catch (RuntimeException ex) {
+            log.debug("batch put failed: retry " + nodes.size() + " nodes separately: " + ex);
+        }
+        List<Node> single = new ArrayList<>(1);
+        Map<Node, RuntimeException> failed = new LinkedHashMap<>();
+        for (Node n : nodes) {
+            single.clear();
+            single.add(n);
+            try {
+                put(single);
+            } catch (TransientDataAccessException | DataAccessResourceFailureException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                failed.put(n, ex);
+            }
+        }
+        if (nodes.size() > 1 && failed.size() == nodes.size()) {
+            throw failed.values().iterator().next();
+        }
+        for (Map.Entry<Node, RuntimeException> me : failed.entrySet()) {
+            deadLetters.add(sources.get(me.getKey().getID()), me.getValue());
+        }
+    }
+}
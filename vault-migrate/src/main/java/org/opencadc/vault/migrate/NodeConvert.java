@@ -145,6 +145,7 @@ public class NodeConvert {
             try {
                 ret.bytesUsed = Long.valueOf(raw);
             } catch (NumberFormatException ex) {
+                MigrateMetrics.get().skip("content-length");
                 log.warn("invalid content-length: " + raw + " in " + in.getUri().getPath());
             }
             return ret;
@@ -196,6 +197,7 @@ public class NodeConvert {
                         GroupURI g = new GroupURI(u);
                         ret.getReadOnlyGroup().add(g);
                     } catch (URISyntaxException | IllegalArgumentException ex) {
+                        MigrateMetrics.get().skip("read-group");
                         log.warn("SKIP: invalid read group identifier: " + s 
                                 + " owner: " + ret.ownerID + " node: " + in.getUri().getURI().toASCIIString());
                     }
@@ -214,6 +216,7 @@ public class NodeConvert {
                         GroupURI g = new GroupURI(u);
                         ret.getReadWriteGroup().add(g);
                     } catch (URISyntaxException | IllegalArgumentException ex) {
+                        MigrateMetrics.get().skip("write-group");
                         log.warn("SKIP: invalid write group identifier " + s 
                                 + " owner: " + ret.ownerID + " node: " + in.getUri().getURI().toASCIIString());
                     }
@@ -235,6 +238,7 @@ public class NodeConvert {
                     NodeProperty np = new NodeProperty(key, ip.getPropertyValue());
                     ret.getProperties().add(np);
                 } catch (URISyntaxException ex) {
+                    MigrateMetrics.get().skip("property-uri");
                     log.warn("SKIP: invalid property uri " + ip.getPropertyURI() 
                             + " owner: " + ret.ownerID + " node: " + in.getUri().getURI().toASCIIString()
                             + " reason: " + ex.getMessage());
@@ -0,0 +1,645 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.vos.server.db.DatabaseNodePersistence;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.opencadc.inventory.db.HarvestState;
+import org.opencadc.vault.NodePersistenceImpl;
+import org.opencadc.vospace.Node;
+
+/**
+ * Staged migration of a container tree: source readers feed chunks of source nodes
+ * to a pool of converters which feed chunks of converted nodes to a pool of 
+ * destination writers. Stages are connected by bounded queues so a slow stage
+ * applies back pressure to the stages before it. Readers divide the tree between
+ * them by splitting queued containers off to idle readers; containers are split off
+ * to other tasks when there is no idle reader.
+ * 
+ * <p>Each stage records the time it spends working and waiting on the queues so the
+ * summary shows which stage is the bottleneck.
+ * 
+ * @author pdowler
+ */
+public class NodePipeline {
+    private static final Logger log = Logger.getLogger(NodePipeline.class);
+
+    private final DatabaseNodePersistence src;
+    private final NodePersistenceImpl dest;
+    private final PropertyLookup propCache;
+    private final MigrateNodesTask owner;
+    
+    int readers = 1;
+    int converters = 1;
+    int writers = 1;
+    int chunkSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+    int pageSize = 1000;
+    boolean dryrun = false;
+    boolean skipUnchanged = false;
+    DeadLetterFile deadLetters; // record failed nodes and continue
+    BulkNodeLoader bulk;
+    MigrateCheckpoint checkpoint;
+    WriteLimiter limiter; // shared by all tasks
+    HarvestState resumeState; // checkpoint of the root container to resume from
+    Set<URI> exclude = new HashSet<>(); // containers with their own checkpoint or work unit
+    
+    final Stage read = new Stage("read");
+    final Stage convert = new Stage("convert");
+    final Stage write = new Stage("write");
+    final AtomicLong timeQuerying = new AtomicLong();
+    final AtomicLong timeWaiting = new AtomicLong();
+    final AtomicLong numUnchanged = new AtomicLong();
+    int maxRecursionQueueSize = 0;
+    
+    // end-of-stream markers
+    private final Chunk<ca.nrc.cadc.vos.Node> endRead = new Chunk<>(0);
+    private final Chunk<Node> endConvert = new Chunk<>(0);
+    
+    private BlockingQueue<Chunk<ca.nrc.cadc.vos.Node>> convertQueue;
+    private BlockingQueue<Chunk<Node>> writeQueue;
+    private final AtomicInteger readersRunning = new AtomicInteger();
+    private final AtomicInteger convertersRunning = new AtomicInteger();
+    private final AtomicLong numRead = new AtomicLong();
+    
+    // containers waiting for a reader: guarded by this
+    private final LinkedList<ca.nrc.cadc.vos.ContainerNode> containers = new LinkedList<>();
+    private int activeReaders = 0;
+    private int idleReaders = 0;
+    
+    private final List<Thread> threads = new ArrayList<>();
+    private final MigrateMetrics metrics = MigrateMetrics.get();
+    private MigrateMetrics.TaskRate taskRate;
+    private String rootPath;
+    private volatile Exception failure;
+    private volatile String failedAt;
+    
+    public NodePipeline(DatabaseNodePersistence src, NodePersistenceImpl dest, PropertyLookup propCache, 
+            MigrateNodesTask owner) {
+        this.src = src;
+        this.dest = dest;
+        this.propCache = propCache;
+        this.owner = owner;
+    }
+    
+    /**
+     * @return path or name of the node being processed when the pipeline failed, or null
+     */
+    public String getFailedAt() {
+        return failedAt;
+    }
+    
+    /**
+     * Migrate all nodes below the specified container and wait for completion.
+     * 
+     * @param root container to migrate
+     * @throws Exception the first failure in any stage
+     */
+    public void run(ca.nrc.cadc.vos.ContainerNode root) throws Exception {
+        containers.add(root);
+        this.convertQueue = new ArrayBlockingQueue<>(2 * converters);
+        this.writeQueue = new ArrayBlockingQueue<>(2 * writers);
+        readersRunning.set(readers);
+        convertersRunning.set(converters);
+        
+        for (int i = 0; i < writers; i++) {
+            threads.add(new Thread(new Writer(), "write-" + root.getName() + "-" + i));
+        }
+        for (int i = 0; i < converters; i++) {
+            threads.add(new Thread(new Converter(), "convert-" + root.getName() + "-" + i));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(new Reader(), "read-" + root.getName() + "-" + i));
+        }
+        String path = root.getUri().getPath();
+        this.rootPath = path;
+        this.taskRate = metrics.startTask(path);
+        metrics.addQueue("convert " + path, convertQueue);
+        metrics.addQueue("write " + path, writeQueue);
+        long start = System.nanoTime();
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException ex) {
+            fail(ex, null);
+            throw ex;
+        } finally {
+            metrics.endTask(path);
+            metrics.removeQueue("convert " + path);
+            metrics.removeQueue("write " + path);
+        }
+        long wall = System.nanoTime() - start;
+        read.wall = wall;
+        convert.wall = wall;
+        write.wall = wall;
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    // record the first failure and stop all stages
+    private void fail(Exception ex, String where) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            this.failure = ex;
+            this.failedAt = where;
+        }
+        for (Thread t : threads) {
+            if (t != Thread.currentThread()) {
+                t.interrupt();
+            }
+        }
+    }
+    
+    // get the next container to read; null when all readers are done
+    private synchronized ca.nrc.cadc.vos.ContainerNode nextContainer() throws InterruptedException {
+        idleReaders++;
+        try {
+            while (containers.isEmpty() && activeReaders > 0 && failure == null) {
+                wait();
+            }
+            if (containers.isEmpty() || failure != null) {
+                notifyAll();
+                return null;
+            }
+            activeReaders++;
+            return containers.pop();
+        } finally {
+            idleReaders--;
+        }
+    }
+    
+    private synchronized void doneContainer() {
+        activeReaders--;
+        notifyAll();
+    }
+    
+    // hand a queued container to an idle reader or to another task
+    private void trySplit(SourceNodeIterator iter) throws InterruptedException {
+        synchronized (this) {
+            if (idleReaders > 0 && containers.isEmpty()) {
+                ca.nrc.cadc.vos.ContainerNode cn = iter.split();
+                if (cn != null) {
+                    log.debug("reader split: " + cn.getUri().getPath());
+                    containers.add(cn);
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        owner.trySplit(iter);
+    }
+    
+    private class Reader implements Runnable {
+        @Override
+        public void run() {
+            String cur = null;
+            try {
+                final String fmt = "%d %s %s";
+                ca.nrc.cadc.vos.ContainerNode cn = nextContainer();
+                while (cn != null) {
+                    SourceNodeIterator iter = new SourceNodeIterator(src, propCache);
+                    MigrateCheckpoint.Cursor cursor = null;
+                    try {
+                        iter.setPageSize(pageSize);
+                        iter.setExclude(exclude);
+                        HarvestState rs = takeResumeState(cn);
+                        if (rs != null && rs.curID != null) {
+                            iter.resume(cn, rs.curID.getLeastSignificantBits(), exclude);
+                        } else {
+                            iter.setContainer(cn);
+                        }
+                        if (checkpoint != null) {
+                            cursor = checkpoint.start(cn);
+                        }
+                        Chunk<ca.nrc.cadc.vos.Node> chunk = new Chunk<>(chunkSize);
+                        long t1 = System.nanoTime();
+                        while (iter.hasNext()) {
+                            ca.nrc.cadc.vos.Node sn = iter.next();
+                            cur = sn.getUri().getPath();
+                            log.info(String.format(fmt, numRead.incrementAndGet(), sn.getClass().getSimpleName(), sn.getUri().getPath()));
+                            chunk.nodes.add(sn);
+                            if (chunk.nodes.size() >= chunkSize) {
+                                // once per chunk: trySplit takes the pipeline and task locks
+                                trySplit(iter);
+                                read.add(chunk.nodes.size(), System.nanoTime() - t1);
+                                read.put(convertQueue, chunk.position(cursor, sn));
+                                chunk = new Chunk<>(chunkSize);
+                                t1 = System.nanoTime();
+                            }
+                        }
+                        if (!chunk.nodes.isEmpty()) {
+                            read.add(chunk.nodes.size(), System.nanoTime() - t1);
+                            read.put(convertQueue, chunk.position(cursor, chunk.nodes.get(chunk.nodes.size() - 1)));
+                        }
+                        if (cursor != null) {
+                            checkpoint.readerDone(cursor);
+                        }
+                    } finally {
+                        iter.close();
+                        timeQuerying.addAndGet(iter.timeQuerying);
+                        timeWaiting.addAndGet(iter.timeWaiting);
+                        synchronized (NodePipeline.this) {
+                            maxRecursionQueueSize = Math.max(maxRecursionQueueSize, iter.maxRecursionQueueSize);
+                        }
+                        doneContainer();
+                    }
+                    cn = nextContainer();
+                }
+            } catch (Exception ex) {
+                fail(ex, cur);
+            } finally {
+                if (readersRunning.decrementAndGet() == 0 && failure == null) {
+                    for (int i = 0; i < converters; i++) {
+                        endOfStream(convertQueue, endRead);
+                    }
+                }
+            }
+        }
+    }
+    
+    private class Converter implements Runnable {
+        @Override
+        public void run() {
+            String cur = null;
+            try {
+                NodeConvert conv = new NodeConvert(dest.getRootNode().getID());
+                Chunk<ca.nrc.cadc.vos.Node> in = convert.take(convertQueue);
+                while (in != endRead) {
+                    long t1 = System.nanoTime();
+                    Chunk<Node> out = new Chunk<>(in.nodes.size());
+                    out.cursor = in.cursor;
+                    out.seq = in.seq;
+                    out.lastNodeID = in.lastNodeID;
+                    for (ca.nrc.cadc.vos.Node sn : in.nodes) {
+                        cur = sn.getUri().getPath();
+                        MigrateEvents.Convert event = null;
+                        if (MigrateEvents.Support.AVAILABLE) {
+                            event = new MigrateEvents.Convert();
+                            event.begin();
+                        }
+                        long t2 = System.nanoTime();
+                        try {
+                            Node n = conv.convert(sn);
+                            out.nodes.add(n);
+                            if (deadLetters != null) {
+                                out.sources.put(n.getID(), sn.getUri().getURI());
+                            }
+                        } catch (IllegalArgumentException | ParseException | URISyntaxException ex) {
+                            if (deadLetters == null) {
+                                throw ex;
+                            }
+                            deadLetters.add(sn.getUri().getURI(), ex);
+                        }
+                        metrics.convert.observe(System.nanoTime() - t2);
+                        if (event != null) {
+                            event.end();
+                            if (event.shouldCommit()) {
+                                event.node = cur;
+                                event.type = sn.getClass().getSimpleName();
+                                event.commit();
+                            }
+                        }
+                    }
+                    convert.add(out.nodes.size(), System.nanoTime() - t1);
+                    convert.put(writeQueue, out);
+                    in = convert.take(convertQueue);
+                }
+            } catch (Exception ex) {
+                fail(ex, cur);
+            } finally {
+                if (convertersRunning.decrementAndGet() == 0 && failure == null) {
+                    for (int i = 0; i < writers; i++) {
+                        endOfStream(writeQueue, endConvert);
+                    }
+                }
+            }
+        }
+    }
+    
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            String cur = null;
+            BulkNodeLoader.CopyStream copy = null;
+            try {
+                NodeBatchWriter writer = new NodeBatchWriter(dest);
+                UnchangedNodeFilter filter = null;
+                if (skipUnchanged) {
+                    filter = new UnchangedNodeFilter();
+                }
+                if (bulk != null && !dryrun) {
+                    copy = bulk.open();
+                }
+                Chunk<Node> chunk = write.take(writeQueue);
+                while (chunk != endConvert) {
+                    if (owner.isLost()) {
+                        // another process may be writing the same nodes: stop
+                        throw new IllegalStateException("work unit lease lost: " + rootPath);
+                    }
+                    if (chunk.nodes.isEmpty()) {
+                        // all nodes failed conversion: only the checkpoint advances
+                        if (chunk.cursor != null) {
+                            checkpoint.written(chunk.cursor, chunk.seq, chunk.lastNodeID);
+                        }
+                        chunk = write.take(writeQueue);
+                        continue;
+                    }
+                    cur = "batch starting at " + chunk.nodes.get(0).getName();
+                    List<Node> nodes = chunk.nodes;
+                    if (filter != null) {
+                        nodes = filter.changed(chunk.nodes);
+                        int n = chunk.nodes.size() - nodes.size();
+                        numUnchanged.addAndGet(n);
+                        metrics.skip("unchanged", n);
+                    }
+                    if (nodes.isEmpty()) {
+                        // all nodes unchanged: nothing to put, only the checkpoint advances
+                        if (chunk.cursor != null) {
+                            checkpoint.written(chunk.cursor, chunk.seq, chunk.lastNodeID);
+                        }
+                        chunk = write.take(writeQueue);
+                        continue;
+                    }
+                    if (limiter != null && !dryrun) {
+                        limiter.acquire();
+                    }
+                    MigrateEvents.DestPut event = null;
+                    if (MigrateEvents.Support.AVAILABLE) {
+                        event = new MigrateEvents.DestPut();
+                        event.begin();
+                    }
+                    long t1 = System.nanoTime();
+                    boolean ok = false;
+                    try {
+                        if (!dryrun) {
+                            if (copy != null) {
+                                copy.write(nodes);
+                            } else if (deadLetters != null) {
+                                writer.putIsolated(nodes, chunk.sources, deadLetters);
+                            } else {
+                                writer.put(nodes);
+                            }
+                        }
+                        ok = true;
+                    } finally {
+                        if (limiter != null && !dryrun) {
+                            limiter.release(System.nanoTime() - t1, nodes.size(), ok);
+                        }
+                    }
+                    long dt = System.nanoTime() - t1;
+                    if (event != null) {
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.task = rootPath;
+                            event.nodes = nodes.size();
+                            event.mode = (dryrun ? "dryrun" : (copy != null ? "copy" : "put"));
+                            event.commit();
+                        }
+                    }
+                    write.add(nodes.size(), dt);
+                    if (!dryrun) {
+                        metrics.destPut.observe(dt);
+                    }
+                    metrics.written(taskRate, nodes.size());
+                    if (chunk.cursor != null) {
+                        checkpoint.written(chunk.cursor, chunk.seq, chunk.lastNodeID);
+                    }
+                    chunk = write.take(writeQueue);
+                }
+                if (copy != null) {
+                    copy.close();
+                    copy = null;
+                }
+            } catch (Exception ex) {
+                fail(ex, cur);
+            } finally {
+                if (copy != null) {
+                    copy.cancel(); // do not commit a partial stream
+                }
+            }
+        }
+    }
+    
+    // the resume state applies to the root container only
+    private synchronized HarvestState takeResumeState(ca.nrc.cadc.vos.ContainerNode cn) {
+        HarvestState ret = null;
+        if (resumeState != null && cn.getUri().getURI().equals(resumeState.getResourceID())) {
+            ret = resumeState;
+        }
+        resumeState = null;
+        return ret;
+    }
+    
+    /**
+     * Nodes passed between stages, with the reader position after the last node.
+     */
+    static class Chunk<T> {
+        final List<T> nodes;
+        final Map<UUID, URI> sources = new HashMap<>(); // converted node ID -> source URI
+        MigrateCheckpoint.Cursor cursor;
+        long seq;
+        long lastNodeID;
+        
+        Chunk(int size) {
+            this.nodes = new ArrayList<>(size);
+        }
+        
+        Chunk<T> position(MigrateCheckpoint.Cursor cursor, ca.nrc.cadc.vos.Node last) {
+            if (cursor != null) {
+                this.cursor = cursor;
+                this.seq = cursor.nextSeq();
+                this.lastNodeID = ((ca.nrc.cadc.vos.server.NodeID) last.appData).id;
+            }
+            return this;
+        }
+    }
+    
+    private <T> void endOfStream(BlockingQueue<T> queue, T marker) {
+        try {
+            queue.put(marker);
+        } catch (InterruptedException ex) {
+            fail(ex, null);
+        }
+    }
+    
+    /**
+     * Per-stage counters. Work time is accumulated over all threads in the stage, so 
+     * utilization close to 100% identifies the bottleneck.
+     */
+    static class Stage {
+        final String name;
+        private long nodes = 0L;
+        private long chunks = 0L;
+        private long busy = 0L; // nanos
+        private long blocked = 0L; // nanos
+        private long minChunk = Long.MAX_VALUE;
+        private long maxChunk = 0L;
+        long wall = 0L;
+        
+        Stage(String name) {
+            this.name = name;
+        }
+        
+        synchronized void add(int num, long nanos) {
+            nodes += num;
+            chunks++;
+            busy += nanos;
+            minChunk = Math.min(minChunk, nanos);
+            maxChunk = Math.max(maxChunk, nanos);
+        }
+        
+        <T> void put(BlockingQueue<T> queue, T chunk) throws InterruptedException {
+            MigrateEvents.QueueWait event = begin();
+            long t1 = System.nanoTime();
+            queue.put(chunk); // block at capacity
+            addBlocked(System.nanoTime() - t1);
+            commit(event, "put");
+        }
+        
+        <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+            MigrateEvents.QueueWait event = begin();
+            long t1 = System.nanoTime();
+            T ret = queue.take(); // block when empty
+            addBlocked(System.nanoTime() - t1);
+            commit(event, "take");
+            return ret;
+        }
+        
+        private MigrateEvents.QueueWait begin() {
+            if (!MigrateEvents.Support.AVAILABLE) {
+                return null;
+            }
+            MigrateEvents.QueueWait ret = new MigrateEvents.QueueWait();
+            ret.begin();
+            return ret;
+        }
+        
+        private void commit(MigrateEvents.QueueWait event, String op) {
+            if (event == null) {
+                return;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = name;
+                event.operation = op;
+                event.commit();
+            }
+        }
+        
+        private synchronized void addBlocked(long nanos) {
+            blocked += nanos;
+        }
+        
+        synchronized long getNodes() {
+            return nodes;
+        }
+        
+        synchronized long getChunks() {
+            return chunks;
+        }
+        
+        synchronized long getBusy() {
+            return busy;
+        }
+        
+        String summary(int threads) {
+            synchronized (this) {
+                double busyMs = busy / 1.0e6;
+                long rate = (busy > 0 ? (long) (threads * nodes * 1.0e9 / busy) : 0L);
+                double util = (wall > 0 ? 100.0 * busy / (threads * (double) wall) : 0.0);
+                return String.format("stage %s threads: %d nodes: %d chunks: %d busy: %.0f ms blocked: %.0f ms "
+                        + "min-chunk: %.2f ms max-chunk: %.2f ms utilization: %.1f%% capacity: %d nodes/sec",
+                        name, threads, nodes, chunks, busyMs, blocked / 1.0e6,
+                        (chunks > 0 ? minChunk / 1.0e6 : 0.0), maxChunk / 1.0e6, util, rate);
+            }
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.vos.NodeProperty;
+import ca.nrc.cadc.vos.VOSURI;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Local file with source nodes and their properties so a load can be repeated without
+ * reading the source database. Nodes are written in independently compressed chunks; the
+ * index at the end of the file lists the chunks of each section (one per top level target)
+ * so a load can decompress and convert chunks in parallel. Each node is read back as 
+ * a source node with everything NodeConvert uses: type, URI, NodeID, parent NodeID, 
+ * public and locked flags, link target, and properties.
+ * 
+ * <p>File format (big-endian): header (magic, version, pad), chunks (numNodes, length, 
+ * gzip data), index (numSections, then path, numNodes, numChunks, long[numChunks] offset
+ * for each section), trailer (index offset, magic).
+ * 
+ * @author pdowler
+ */
+public class NodeSnapshot implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(NodeSnapshot.class);
+
+    static final long MAGIC = 0x564d4e4f44455331L; // VMNODES1
+    static final int VERSION = 1;
+    static final int CHUNK_SIZE = 8192; // nodes
+    
+    private static final byte CONTAINER = 'C';
+    private static final byte DATA = 'D';
+    private static final byte LINK = 'L';
+    
+    private static final byte OWNER_NULL = 0;
+    private static final byte OWNER_INT = 1;
+    private static final byte OWNER_LONG = 2;
+    private static final byte OWNER_STRING = 3;
+    
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private final List<Section> sections = new ArrayList<>();
+    
+    private NodeSnapshot(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.fc = raf.getChannel();
+        long size = fc.size();
+        ByteBuffer buf = read(0L, 16);
+        if (size < 32L || buf.getLong() != MAGIC) {
+            throw new IOException("invalid node snapshot: " + file);
+        }
+        int ver = buf.getInt();
+        if (ver != VERSION) {
+            throw new IOException("unsupported node snapshot version: " + ver + " in " + file);
+        }
+        buf = read(size - 16L, 16);
+        long indexStart = buf.getLong();
+        if (buf.getLong() != MAGIC) {
+            throw new IOException("incomplete node snapshot (no index): " + file);
+        }
+        buf = read(indexStart, (int) (size - 16L - indexStart));
+        int num = buf.getInt();
+        for (int i = 0; i < num; i++) {
+            byte[] b = new byte[buf.getInt()];
+            buf.get(b);
+            Section s = new Section(new String(b, StandardCharsets.UTF_8));
+            s.numNodes = buf.getLong();
+            s.chunks = new long[buf.getInt()];
+            for (int c = 0; c < s.chunks.length; c++) {
+                s.chunks[c] = buf.getLong();
+            }
+            sections.add(s);
+        }
+    }
+    
+    /**
+     * Open an existing snapshot file.
+     * 
+     * @param f snapshot file
+     * @return snapshot
+     * @throws IOException failure to read or invalid file
+     */
+    public static NodeSnapshot open(File f) throws IOException {
+        NodeSnapshot ret = new NodeSnapshot(f);
+        log.info("opened " + ret);
+        return ret;
+    }
+    
+    /**
+     * Create a new snapshot file.
+     * 
+     * @param f snapshot file, replaced if it exists
+     * @param chunkSize number of nodes per chunk
+     * @return writer
+     * @throws IOException failure to create the file
+     */
+    public static Writer create(File f, int chunkSize) throws IOException {
+        return new Writer(f, chunkSize);
+    }
+    
+    public List<Section> getSections() {
+        return sections;
+    }
+    
+    /**
+     * Read and decompress one chunk. This method is thread-safe.
+     * 
+     * @param offset chunk offset from the section
+     * @return source nodes in the order they were written
+     * @throws IOException failure to read or decode the chunk
+     */
+    public List<ca.nrc.cadc.vos.Node> readChunk(long offset) throws IOException {
+        ByteBuffer buf = read(offset, 8);
+        int num = buf.getInt();
+        int len = buf.getInt();
+        buf = read(offset + 8L, len);
+        List<ca.nrc.cadc.vos.Node> ret = new ArrayList<>(num);
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                new ByteArrayInputStream(buf.array(), 0, len), 64 * 1024))) {
+            ca.nrc.cadc.vos.ContainerNode parent = null;
+            Long parentID = null;
+            for (int i = 0; i < num; i++) {
+                ca.nrc.cadc.vos.Node n = readNode(in);
+                Long pid = readParentID(in);
+                // siblings share one parent placeholder
+                VOSURI puri = n.getUri().getParentURI();
+                if (parent == null || !eq(parentID, pid) || !parent.getUri().getURI().equals(puri.getURI())) {
+                    parent = new ca.nrc.cadc.vos.ContainerNode(puri);
+                    ca.nrc.cadc.vos.server.NodeID nid = new ca.nrc.cadc.vos.server.NodeID();
+                    nid.id = pid;
+                    parent.appData = nid;
+                    parentID = pid;
+                }
+                n.setParent(parent);
+                ret.add(n);
+            }
+        }
+        return ret;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+    
+    @Override
+    public String toString() {
+        long num = 0L;
+        int chunks = 0;
+        for (Section s : sections) {
+            num += s.numNodes;
+            chunks += s.chunks.length;
+        }
+        return "NodeSnapshot[" + file.getName() + " sections=" + sections.size() + " nodes=" + num 
+                + " chunks=" + chunks + "]";
+    }
+    
+    private static boolean eq(Long a, Long b) {
+        return (a == null ? b == null : a.equals(b));
+    }
+    
+    // positional read: safe for concurrent use
+    private ByteBuffer read(long pos, int len) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate(len);
+        while (ret.hasRemaining()) {
+            int n = fc.read(ret, pos + ret.position());
+            if (n < 0) {
+                throw new EOFException("unexpected end of " + file + " at " + (pos + ret.position()));
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+    
+    private static ca.nrc.cadc.vos.Node readNode(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        ca.nrc.cadc.vos.server.NodeID nid = new ca.nrc.cadc.vos.server.NodeID();
+        nid.id = in.readLong();
+        VOSURI uri = new VOSURI(URI.create(readString(in)));
+        byte flags = in.readByte();
+        byte ot = in.readByte();
+        switch (ot) {
+            case OWNER_NULL:
+                break;
+            case OWNER_INT:
+                nid.ownerObject = in.readInt();
+                break;
+            case OWNER_LONG:
+                nid.ownerObject = in.readLong();
+                break;
+            case OWNER_STRING:
+                nid.ownerObject = readString(in);
+                break;
+            default:
+                throw new IOException("invalid owner type: " + ot);
+        }
+        nid.storageID = readString(in);
+        ca.nrc.cadc.vos.Node ret;
+        switch (type) {
+            case CONTAINER:
+                ret = new ca.nrc.cadc.vos.ContainerNode(uri);
+                break;
+            case DATA:
+                ret = new ca.nrc.cadc.vos.DataNode(uri);
+                break;
+            case LINK:
+                ret = new ca.nrc.cadc.vos.LinkNode(uri, URI.create(readString(in)));
+                break;
+            default:
+                throw new IOException("invalid node type: " + type);
+        }
+        ret.appData = nid;
+        ret.setPublic((flags & 1) != 0);
+        ret.setLocked((flags & 2) != 0);
+        int num = in.readInt();
+        for (int i = 0; i < num; i++) {
+            String key = readString(in);
+            ret.getProperties().add(new NodeProperty(key, readString(in)));
+        }
+        return ret;
+    }
+    
+    private static Long readParentID(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readLong();
+        }
+        return null;
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+    
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    
+    /**
+     * Nodes of one top level target.
+     */
+    public static class Section {
+        private final String path;
+        private long numNodes;
+        private long[] chunks;
+        
+        Section(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getNumNodes() {
+            return numNodes;
+        }
+
+        public long[] getChunks() {
+            return chunks;
+        }
+    }
+    
+    /**
+     * Sequential writer: sections are written one after the other and the index
+     * is written by close.
+     */
+    public static class Writer implements AutoCloseable {
+        private final File file;
+        private final int chunkSize;
+        private final DataOutputStream out;
+        private long pos = 0L;
+        private final List<Section> done = new ArrayList<>();
+        private Section cur;
+        private final List<Long> curChunks = new ArrayList<>();
+        
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(1024 * 1024);
+        private DataOutputStream chunkOut;
+        private int numInChunk = 0;
+        private long rawBytes = 0L;
+        
+        private Writer(File file, int chunkSize) throws IOException {
+            this.file = file;
+            this.chunkSize = chunkSize;
+            this.out = new DataOutputStream(new FileOutputStream(file));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0);
+            pos = 16L;
+        }
+        
+        public void startSection(String path) {
+            if (cur != null) {
+                throw new IllegalStateException("BUG: section not ended: " + cur.path);
+            }
+            this.cur = new Section(path);
+            curChunks.clear();
+        }
+        
+        /**
+         * Add a source node with properties. The parent must have a NodeID
+         * (the id may be null for the root container).
+         * 
+         * @param n source node
+         * @throws IOException failure to write
+         */
+        public void add(ca.nrc.cadc.vos.Node n) throws IOException {
+            if (chunkOut == null) {
+                chunk.reset();
+                chunkOut = new DataOutputStream(new GZIPOutputStream(chunk, 64 * 1024));
+            }
+            writeNode(chunkOut, n);
+            cur.numNodes++;
+            if (++numInChunk == chunkSize) {
+                flushChunk();
+            }
+        }
+        
+        public void endSection() throws IOException {
+            flushChunk();
+            cur.chunks = new long[curChunks.size()];
+            for (int i = 0; i < cur.chunks.length; i++) {
+                cur.chunks[i] = curChunks.get(i);
+            }
+            done.add(cur);
+            log.info("section " + cur.path + " nodes: " + cur.numNodes + " chunks: " + cur.chunks.length);
+            cur = null;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                if (cur != null) {
+                    throw new IllegalStateException("BUG: section not ended: " + cur.path);
+                }
+                long indexStart = pos;
+                out.writeInt(done.size());
+                for (Section s : done) {
+                    byte[] b = s.path.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(b.length);
+                    out.write(b);
+                    out.writeLong(s.numNodes);
+                    out.writeInt(s.chunks.length);
+                    for (long c : s.chunks) {
+                        out.writeLong(c);
+                    }
+                }
+                out.writeLong(indexStart);
+                out.writeLong(MAGIC);
+                log.info("snapshot " + file + ": " + done.size() + " sections, " + indexStart + " bytes (" 
+                        + rawBytes + " uncompressed)");
+            } finally {
+                out.close();
+            }
+        }
+        
+        private void flushChunk() throws IOException {
+            if (chunkOut == null) {
+                return;
+            }
+            rawBytes += chunkOut.size();
+            chunkOut.close(); // finish gzip
+            chunkOut = null;
+            curChunks.add(pos);
+            out.writeInt(numInChunk);
+            out.writeInt(chunk.size());
+            chunk.writeTo(out);
+            pos += 8L + chunk.size();
+            numInChunk = 0;
+        }
+        
+        private static void writeNode(DataOutputStream out, ca.nrc.cadc.vos.Node n) throws IOException {
+            ca.nrc.cadc.vos.server.NodeID nid = (ca.nrc.cadc.vos.server.NodeID) n.appData;
+            if (n instanceof ca.nrc.cadc.vos.ContainerNode) {
+                out.writeByte(CONTAINER);
+            } else if (n instanceof ca.nrc.cadc.vos.DataNode) {
+                out.writeByte(DATA);
+            } else if (n instanceof ca.nrc.cadc.vos.LinkNode) {
+                out.writeByte(LINK);
+            } else {
+                throw new UnsupportedOperationException("extract " + n.getClass().getName());
+            }
+            out.writeLong(nid.id);
+            writeString(out, n.getUri().getURI().toASCIIString());
+            int flags = (n.isPublic() ? 1 : 0) | (n.isLocked() ? 2 : 0);
+            out.writeByte(flags);
+            Object owner = nid.ownerObject;
+            if (owner == null) {
+                out.writeByte(OWNER_NULL);
+            } else if (owner instanceof Integer) {
+                out.writeByte(OWNER_INT);
+                out.writeInt((Integer) owner);
+            } else if (owner instanceof Long) {
+                out.writeByte(OWNER_LONG);
+                out.writeLong((Long) owner);
+            } else if (owner instanceof String) {
+                out.writeByte(OWNER_STRING);
+                writeString(out, (String) owner);
+            } else {
+                throw new IllegalArgumentException("unsupported owner type: " + owner.getClass().getName()
+                        + " node: " + n.getUri().getPath());
+            }
+            writeString(out, nid.storageID);
+            if (n instanceof ca.nrc.cadc.vos.LinkNode) {
+                writeString(out, ((ca.nrc.cadc.vos.LinkNode) n).getTarget().toASCIIString());
+            }
+            List<NodeProperty> props = n.getProperties();
+            out.writeInt(props.size());
+            for (NodeProperty p : props) {
+                writeString(out, p.getPropertyURI());
+                writeString(out, p.getPropertyValue());
+            }
+            ca.nrc.cadc.vos.server.NodeID pid = (ca.nrc.cadc.vos.server.NodeID) n.getParent().appData;
+            if (pid != null && pid.id != null) {
+                out.writeBoolean(true);
+                out.writeLong(pid.id);
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+    }
+}
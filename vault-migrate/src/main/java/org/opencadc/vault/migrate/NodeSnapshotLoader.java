@@ -0,0 +1,244 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import org.opencadc.vault.NodePersistenceImpl;
+import org.opencadc.vospace.Node;
+
+/**
+ * Load the nodes of a snapshot section into the destination. Chunks are independent
+ * so each thread takes the next chunk, decompresses and converts it, and writes the
+ * nodes in batches; the source database is not used. With a dead letter file, nodes
+ * that fail to convert or write are recorded by source URI and skipped; retrying them
+ * reads the nodes from the live source, not from the snapshot.
+ * 
+ * @author pdowler
+ */
+public class NodeSnapshotLoader {
+    private static final Logger log = Logger.getLogger(NodeSnapshotLoader.class);
+
+    private final NodeSnapshot snapshot;
+    private final NodePersistenceImpl dest;
+    
+    int threads = 1;
+    int batchSize = NodeBatchWriter.DEFAULT_BATCH_SIZE;
+    boolean dryrun = false;
+    boolean skipUnchanged = false;
+    BulkNodeLoader bulk;
+    DeadLetterFile deadLetters;
+    
+    private final MigrateMetrics metrics = MigrateMetrics.get();
+    
+    public NodeSnapshotLoader(NodeSnapshot snapshot, NodePersistenceImpl dest) {
+        this.snapshot = snapshot;
+        this.dest = dest;
+    }
+    
+    /**
+     * Load all nodes in a section and wait for completion.
+     * 
+     * @param s snapshot section
+     * @return number of nodes written
+     * @throws Exception the first failure in any thread
+     */
+    public long load(NodeSnapshot.Section s) throws Exception {
+        final long[] chunks = s.getChunks();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong numWritten = new AtomicLong();
+        final MigrateMetrics.TaskRate rate = metrics.startTask(s.getPath());
+        long t1 = System.currentTimeMillis();
+        int num = Math.max(1, Math.min(threads, chunks.length));
+        ExecutorService pool = Executors.newFixedThreadPool(num);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < num; i++) {
+                workers.add(pool.submit(() -> {
+                    loadChunks(chunks, next, numWritten, rate);
+                    return null;
+                }));
+            }
+            for (Future<Void> f : workers) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    next.set(chunks.length); // stop the other threads after the current chunk
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            metrics.endTask(s.getPath());
+        }
+        long dt = System.currentTimeMillis() - t1;
+        long r = (dt > 0 ? 1000L * s.getNumNodes() / dt : 0L);
+        log.info(String.format("summary %s count: %d written: %d chunks: %d threads: %d total-time: %d ms "
+                + "rate: %d nodes/sec", s.getPath(), s.getNumNodes(), numWritten.get(), chunks.length, num, dt, r));
+        return numWritten.get();
+    }
+    
+    private void loadChunks(long[] chunks, AtomicInteger next, AtomicLong numWritten, MigrateMetrics.TaskRate rate) 
+            throws Exception {
+        NodeConvert conv = new NodeConvert(dest.getRootNode().getID());
+        NodeBatchWriter writer = new NodeBatchWriter(dest);
+        UnchangedNodeFilter filter = null;
+        if (skipUnchanged) {
+            filter = new UnchangedNodeFilter();
+        }
+        BulkNodeLoader.CopyStream copy = null;
+        if (bulk != null && !dryrun) {
+            copy = bulk.open();
+        }
+        try {
+            int i = next.getAndIncrement();
+            while (i < chunks.length) {
+                List<ca.nrc.cadc.vos.Node> nodes = snapshot.readChunk(chunks[i]);
+                List<Node> batch = new ArrayList<>(batchSize);
+                Map<UUID, URI> sources = new HashMap<>(); // converted node ID -> source URI
+                for (ca.nrc.cadc.vos.Node sn : nodes) {
+                    long t2 = System.nanoTime();
+                    try {
+                        Node n = conv.convert(sn);
+                        batch.add(n);
+                        if (deadLetters != null) {
+                            sources.put(n.getID(), sn.getUri().getURI());
+                        }
+                    } catch (IllegalArgumentException | ParseException | URISyntaxException ex) {
+                        if (deadLetters == null) {
+                            throw ex;
+                        }
+                        deadLetters.add(sn.getUri().getURI(), ex);
+                    }
+                    metrics.convert.observe(System.nanoTime() - t2);
+                    if (batch.size() == batchSize) {
+                        numWritten.addAndGet(write(writer, filter, copy, batch, sources, rate));
+                        batch.clear();
+                        sources.clear();
+                    }
+                }
+                numWritten.addAndGet(write(writer, filter, copy, batch, sources, rate));
+                log.debug("chunk " + i + ": " + nodes.size() + " nodes");
+                i = next.getAndIncrement();
+            }
+            if (copy != null) {
+                copy.close();
+                copy = null;
+            }
+        } finally {
+            if (copy != null) {
+                copy.cancel(); // do not commit a partial stream
+            }
+        }
+    }
+    
+    // write a batch: return number of nodes written
+    private int write(NodeBatchWriter writer, UnchangedNodeFilter filter, BulkNodeLoader.CopyStream copy, 
+            List<Node> batch, Map<UUID, URI> sources, MigrateMetrics.TaskRate rate) throws Exception {
+        List<Node> nodes = batch;
+        if (filter != null && !batch.isEmpty()) {
+            nodes = filter.changed(batch);
+            metrics.skip("unchanged", batch.size() - nodes.size());
+        }
+        if (nodes.isEmpty()) {
+            return 0;
+        }
+        if (dryrun) {
+            metrics.written(rate, nodes.size());
+            return 0;
+        }
+        long t1 = System.nanoTime();
+        if (copy != null) {
+            copy.write(nodes);
+        } else if (deadLetters != null) {
+            writer.putIsolated(nodes, sources, deadLetters);
+        } else {
+            writer.put(nodes);
+        }
+        metrics.destPut.observe(System.nanoTime() - t1);
+        metrics.written(rate, nodes.size());
+        return nodes.size();
+    }
+}
@@ -0,0 +1,408 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.vos.NodeProperty;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * Compact in-memory store of source node properties. Properties are stored in
+ * primitive arrays sorted by node ID: property URIs are dictionary-encoded (there
+ * are only a few hundred distinct ones) and values are packed as UTF-8 into shared
+ * byte pages. Properties must be added in nodeID order.
+ * 
+ * @author pdowler
+ */
+public class PropertyCache implements PropertyLookup {
+    private static final Logger log = Logger.getLogger(PropertyCache.class);
+
+    private static final int PAGE_SIZE = 1024 * 1024;
+    private static final int INIT_CAPACITY = 1024;
+    
+    // property URI dictionary
+    private final List<String> uris = new ArrayList<>();
+    private final Map<String,Integer> uriIndex = new HashMap<>();
+    
+    // per node: sorted by id
+    private long[] ids = new long[INIT_CAPACITY];
+    private int[] firstProp = new int[INIT_CAPACITY];
+    private int numNodes = 0;
+    
+    // per property: dictionary index, value location (page << 32 | offset), value length
+    private short[] propURI = new short[INIT_CAPACITY];
+    private long[] valueRef = new long[INIT_CAPACITY];
+    private int[] valueLen = new int[INIT_CAPACITY];
+    private int numProps = 0;
+    
+    // packed values
+    private final List<byte[]> pages = new ArrayList<>();
+    private byte[] curPage;
+    private int curOffset;
+    
+    public PropertyCache() {
+    }
+    
+    /**
+     * Add a property.
+     * 
+     * @param nodeID node ID (must be >= the previous nodeID)
+     * @param uri property URI
+     * @param value property value (may be null)
+     */
+    public void add(long nodeID, String uri, String value) {
+        if (numNodes == 0 || ids[numNodes - 1] != nodeID) {
+            if (numNodes > 0 && nodeID < ids[numNodes - 1]) {
+                throw new IllegalStateException("properties out of order: " + nodeID + " after " + ids[numNodes - 1]);
+            }
+            if (numNodes == ids.length) {
+                int len = grow(ids.length);
+                ids = Arrays.copyOf(ids, len);
+                firstProp = Arrays.copyOf(firstProp, len);
+            }
+            ids[numNodes] = nodeID;
+            firstProp[numNodes] = numProps;
+            numNodes++;
+        }
+        
+        if (numProps == propURI.length) {
+            int len = grow(propURI.length);
+            propURI = Arrays.copyOf(propURI, len);
+            valueRef = Arrays.copyOf(valueRef, len);
+            valueLen = Arrays.copyOf(valueLen, len);
+        }
+        propURI[numProps] = (short) getURIIndex(uri);
+        if (value == null) {
+            valueRef[numProps] = 0L;
+            valueLen[numProps] = -1;
+        } else {
+            byte[] b = value.getBytes(StandardCharsets.UTF_8);
+            valueRef[numProps] = store(b);
+            valueLen[numProps] = b.length;
+        }
+        numProps++;
+    }
+    
+    @Override
+    public List<NodeProperty> get(long nodeID) {
+        int i = Arrays.binarySearch(ids, 0, numNodes, nodeID);
+        if (i < 0) {
+            return null;
+        }
+        int start = firstProp[i];
+        int end = (i + 1 < numNodes ? firstProp[i + 1] : numProps);
+        List<NodeProperty> ret = new ArrayList<>(end - start);
+        for (int p = start; p < end; p++) {
+            String uri = uris.get(propURI[p] & 0xFFFF);
+            String val = null;
+            if (valueLen[p] >= 0) {
+                byte[] page = pages.get((int) (valueRef[p] >>> 32));
+                int off = (int) valueRef[p];
+                val = new String(page, off, valueLen[p], StandardCharsets.UTF_8);
+            }
+            ret.add(new NodeProperty(uri, val));
+        }
+        return ret;
+    }
+    
+    /**
+     * Merge caches with disjoint nodeID ranges. The parts must be in nodeID order
+     * and are not usable after the merge.
+     * 
+     * @param parts caches to merge, in nodeID order
+     * @return merged cache
+     */
+    public static PropertyCache merge(List<PropertyCache> parts) {
+        int nn = 0;
+        int np = 0;
+        for (PropertyCache pc : parts) {
+            nn += pc.numNodes;
+            np += pc.numProps;
+        }
+        PropertyCache ret = new PropertyCache();
+        ret.ids = new long[nn];
+        ret.firstProp = new int[nn];
+        ret.propURI = new short[np];
+        ret.valueRef = new long[np];
+        ret.valueLen = new int[np];
+        for (PropertyCache pc : parts) {
+            if (pc.numNodes == 0) {
+                continue;
+            }
+            if (ret.numNodes > 0 && pc.ids[0] <= ret.ids[ret.numNodes - 1]) {
+                throw new IllegalStateException("merge out of order: " + pc.ids[0] + " after " + ret.ids[ret.numNodes - 1]);
+            }
+            System.arraycopy(pc.ids, 0, ret.ids, ret.numNodes, pc.numNodes);
+            for (int i = 0; i < pc.numNodes; i++) {
+                ret.firstProp[ret.numNodes + i] = pc.firstProp[i] + ret.numProps;
+            }
+            
+            short[] uriMap = new short[pc.uris.size()];
+            for (int i = 0; i < uriMap.length; i++) {
+                uriMap[i] = (short) ret.getURIIndex(pc.uris.get(i));
+            }
+            long pageOffset = ((long) ret.pages.size()) << 32;
+            for (int i = 0; i < pc.numProps; i++) {
+                int j = ret.numProps + i;
+                ret.propURI[j] = uriMap[pc.propURI[i] & 0xFFFF];
+                ret.valueLen[j] = pc.valueLen[i];
+                if (pc.valueLen[i] >= 0) {
+                    ret.valueRef[j] = pc.valueRef[i] + pageOffset;
+                }
+            }
+            ret.pages.addAll(pc.pages);
+            ret.numNodes += pc.numNodes;
+            ret.numProps += pc.numProps;
+        }
+        return ret;
+    }
+    
+    /**
+     * Write the cache to a snapshot file that can be mapped with PropertySnapshot.
+     * 
+     * @param f output file
+     * @param watermark source watermark: the cache includes all changes before this
+     * @throws IOException failure to write
+     */
+    public void writeSnapshot(File f, Date watermark) throws IOException {
+        try (SnapshotOutputStream out = new SnapshotOutputStream(new FileOutputStream(f))) {
+            out.writeLong(PropertySnapshot.MAGIC);
+            out.writeInt(PropertySnapshot.VERSION);
+            out.writeInt(0);
+            out.writeLong(watermark.getTime());
+            out.writeInt(numNodes);
+            out.writeInt(numProps);
+            out.writeInt(uris.size());
+            out.writeInt(pages.size());
+            for (String u : uris) {
+                byte[] b = u.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            out.align();
+            for (int i = 0; i < numNodes; i++) {
+                out.writeLong(ids[i]);
+            }
+            for (int i = 0; i < numNodes; i++) {
+                out.writeInt(firstProp[i]);
+            }
+            out.align();
+            for (int i = 0; i < numProps; i++) {
+                out.writeShort(propURI[i]);
+            }
+            out.align();
+            for (int i = 0; i < numProps; i++) {
+                out.writeInt(valueLen[i]);
+            }
+            out.align();
+            // value location: page << 32 | offset -> offset in the values section
+            long[] pageStart = new long[pages.size()];
+            long pos = 0L;
+            for (int i = 0; i < pageStart.length; i++) {
+                pageStart[i] = pos;
+                pos += pages.get(i).length;
+            }
+            for (int i = 0; i < numProps; i++) {
+                long off = 0L;
+                if (valueLen[i] >= 0) {
+                    off = pageStart[(int) (valueRef[i] >>> 32)] + (int) valueRef[i];
+                }
+                out.writeLong(off);
+            }
+            for (byte[] p : pages) {
+                out.write(p);
+            }
+        }
+    }
+    
+    // track position so sections can be 8-byte aligned
+    private static class SnapshotOutputStream extends DataOutputStream {
+        SnapshotOutputStream(OutputStream ostream) {
+            super(new CountingOutputStream(new BufferedOutputStream(ostream, 1024 * 1024)));
+        }
+        
+        void align() throws IOException {
+            CountingOutputStream cos = (CountingOutputStream) out;
+            while (cos.count % 8 != 0) {
+                writeByte(0);
+            }
+        }
+    }
+    
+    // DataOutputStream.written is an int
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0L;
+        
+        CountingOutputStream(OutputStream ostream) {
+            super(ostream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+    
+    public int getNumNodes() {
+        return numNodes;
+    }
+    
+    public int getNumProperties() {
+        return numProps;
+    }
+    
+    public int getNumURIs() {
+        return uris.size();
+    }
+    
+    /**
+     * Release unused array capacity after the last add.
+     */
+    public void trim() {
+        ids = Arrays.copyOf(ids, numNodes);
+        firstProp = Arrays.copyOf(firstProp, numNodes);
+        propURI = Arrays.copyOf(propURI, numProps);
+        valueRef = Arrays.copyOf(valueRef, numProps);
+        valueLen = Arrays.copyOf(valueLen, numProps);
+        if (curPage != null && curOffset < curPage.length) {
+            curPage = Arrays.copyOf(curPage, curOffset);
+            pages.set(pages.size() - 1, curPage);
+        }
+    }
+    
+    /**
+     * @return approximate heap size of the cache in bytes
+     */
+    public long getHeapSize() {
+        long ret = 8L * ids.length + 4L * firstProp.length
+                + 2L * propURI.length + 8L * valueRef.length + 4L * valueLen.length;
+        for (byte[] p : pages) {
+            ret += p.length;
+        }
+        for (String s : uris) {
+            ret += 2L * s.length() + 64L; // string + map entry overhead
+        }
+        return ret;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("PropertyCache[nodes=%d props=%d uris=%d pages=%d heap=%.1f MiB]",
+                numNodes, numProps, uris.size(), pages.size(), getHeapSize() / (1024.0 * 1024.0));
+    }
+    
+    private int getURIIndex(String uri) {
+        Integer ret = uriIndex.get(uri);
+        if (ret == null) {
+            ret = uris.size();
+            if (ret > 0xFFFF) {
+                throw new IllegalStateException("too many distinct property URIs: " + ret);
+            }
+            uris.add(uri);
+            uriIndex.put(uri, ret);
+        }
+        return ret;
+    }
+    
+    // store value bytes and return location
+    private long store(byte[] b) {
+        if (curPage == null || curOffset + b.length > curPage.length) {
+            curPage = new byte[Math.max(PAGE_SIZE, b.length)];
+            curOffset = 0;
+            pages.add(curPage);
+        }
+        long ret = ((long) (pages.size() - 1)) << 32 | curOffset;
+        System.arraycopy(b, 0, curPage, curOffset, b.length);
+        curOffset += b.length;
+        return ret;
+    }
+    
+    private static int grow(int len) {
+        return len + (len >> 1);
+    }
+}
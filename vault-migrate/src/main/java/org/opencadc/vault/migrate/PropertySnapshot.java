@@ -0,0 +1,292 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.vos.NodeProperty;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only view of a property cache snapshot file (written by 
+ * PropertyCache.writeSnapshot) mapped into memory. The file is mapped in fixed size
+ * windows so the data is off-heap and paged in by the OS on demand. Properties of 
+ * nodes that changed since the snapshot watermark can be overlaid with setDelta.
+ * 
+ * <p>File format (big-endian, sections 8-byte aligned): header (magic, version, pad,
+ * watermark, numNodes, numProps, numURIs, numPages), URI dictionary (length + UTF-8),
+ * long[numNodes] nodeID, int[numNodes] first property, short[numProps] URI index,
+ * int[numProps] value length (-1 for null), long[numProps] value offset, values.
+ * 
+ * @author pdowler
+ */
+public class PropertySnapshot implements PropertyLookup {
+    private static final Logger log = Logger.getLogger(PropertySnapshot.class);
+
+    static final long MAGIC = 0x564d50524f505331L; // VMPROPS1
+    static final int VERSION = 1;
+    
+    private static final int WINDOW_BITS = 30; // 1 GiB: multiple of 8 so aligned values never straddle
+    
+    private final File file;
+    private final int windowBits;
+    private final long windowMask;
+    private final MappedByteBuffer[] windows;
+    private final Date watermark;
+    private final int numNodes;
+    private final int numProps;
+    private final List<String> uris = new ArrayList<>();
+    
+    // section offsets
+    private final long idsStart;
+    private final long firstPropStart;
+    private final long propURIStart;
+    private final long valueLenStart;
+    private final long valueOffStart;
+    private final long valuesStart;
+    
+    // properties of nodes modified after the watermark
+    private long[] changed = new long[0];
+    private PropertyCache delta;
+    
+    private PropertySnapshot(File file, int windowBits) throws IOException {
+        this.file = file;
+        this.windowBits = windowBits;
+        long windowSize = 1L << windowBits;
+        this.windowMask = windowSize - 1L;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel fc = raf.getChannel();
+            long size = fc.size();
+            int num = (int) ((size + windowSize - 1) >>> windowBits);
+            this.windows = new MappedByteBuffer[num];
+            for (int i = 0; i < num; i++) {
+                long start = ((long) i) << windowBits;
+                windows[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+            }
+        }
+        
+        if (getLong(0L) != MAGIC) {
+            throw new IOException("invalid property snapshot: " + file);
+        }
+        int ver = getInt(8L);
+        if (ver != VERSION) {
+            throw new IOException("unsupported property snapshot version: " + ver + " in " + file);
+        }
+        this.watermark = new Date(getLong(16L));
+        this.numNodes = getInt(24L);
+        this.numProps = getInt(28L);
+        int numURIs = getInt(32L);
+        long pos = 40L;
+        byte[] lenBytes = new byte[4];
+        for (int i = 0; i < numURIs; i++) {
+            // dictionary entries are not aligned: the length can straddle windows
+            getBytes(pos, lenBytes, 4);
+            int len = ByteBuffer.wrap(lenBytes).getInt();
+            pos += 4L;
+            byte[] b = new byte[len];
+            getBytes(pos, b, len);
+            pos += len;
+            uris.add(new String(b, StandardCharsets.UTF_8));
+        }
+        this.idsStart = align(pos);
+        this.firstPropStart = idsStart + 8L * numNodes;
+        this.propURIStart = align(firstPropStart + 4L * numNodes);
+        this.valueLenStart = align(propURIStart + 2L * numProps);
+        this.valueOffStart = align(valueLenStart + 4L * numProps);
+        this.valuesStart = valueOffStart + 8L * numProps;
+    }
+    
+    /**
+     * Map an existing snapshot file.
+     * 
+     * @param f snapshot file
+     * @return mapped snapshot
+     * @throws IOException failure to read or invalid file
+     */
+    public static PropertySnapshot open(File f) throws IOException {
+        return open(f, WINDOW_BITS);
+    }
+    
+    // small windows are used to test values that straddle windows; min 3 (8 bytes)
+    static PropertySnapshot open(File f, int windowBits) throws IOException {
+        if (windowBits < 3 || windowBits > WINDOW_BITS) {
+            throw new IllegalArgumentException("invalid window bits: " + windowBits);
+        }
+        PropertySnapshot ret = new PropertySnapshot(f, windowBits);
+        log.info("mapped " + ret);
+        return ret;
+    }
+    
+    public Date getWatermark() {
+        return watermark;
+    }
+    
+    /**
+     * Overlay properties of nodes modified after the watermark. For changed nodes
+     * the delta replaces the snapshot content, including removal of all properties.
+     * 
+     * @param changed node IDs modified after the watermark
+     * @param delta current properties of the changed nodes
+     */
+    public void setDelta(long[] changed, PropertyCache delta) {
+        this.changed = Arrays.copyOf(changed, changed.length);
+        Arrays.sort(this.changed);
+        this.delta = delta;
+    }
+    
+    @Override
+    public List<NodeProperty> get(long nodeID) {
+        if (delta != null && Arrays.binarySearch(changed, nodeID) >= 0) {
+            return delta.get(nodeID);
+        }
+        int i = search(nodeID);
+        if (i < 0) {
+            return null;
+        }
+        int start = getInt(firstPropStart + 4L * i);
+        int end = (i + 1 < numNodes ? getInt(firstPropStart + 4L * (i + 1)) : numProps);
+        List<NodeProperty> ret = new ArrayList<>(end - start);
+        for (int p = start; p < end; p++) {
+            String uri = uris.get(getShort(propURIStart + 2L * p) & 0xFFFF);
+            String val = null;
+            int len = getInt(valueLenStart + 4L * p);
+            if (len >= 0) {
+                byte[] b = new byte[len];
+                getBytes(valuesStart + getLong(valueOffStart + 8L * p), b, len);
+                val = new String(b, StandardCharsets.UTF_8);
+            }
+            ret.add(new NodeProperty(uri, val));
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "PropertySnapshot[" + file.getName() + " watermark=" + watermark.getTime() + " nodes=" + numNodes 
+                + " props=" + numProps + " uris=" + uris.size() + " windows=" + windows.length 
+                + " changed=" + changed.length + "]";
+    }
+    
+    // binary search of mapped ids
+    private int search(long nodeID) {
+        int lo = 0;
+        int hi = numNodes - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = getLong(idsStart + 8L * mid);
+            if (v < nodeID) {
+                lo = mid + 1;
+            } else if (v > nodeID) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+    
+    private static long align(long pos) {
+        return (pos + 7L) & ~7L;
+    }
+    
+    private long getLong(long pos) {
+        return windows[(int) (pos >>> windowBits)].getLong((int) (pos & windowMask));
+    }
+    
+    private int getInt(long pos) {
+        return windows[(int) (pos >>> windowBits)].getInt((int) (pos & windowMask));
+    }
+    
+    private short getShort(long pos) {
+        return windows[(int) (pos >>> windowBits)].getShort((int) (pos & windowMask));
+    }
+    
+    // byte arrays can straddle windows
+    private void getBytes(long pos, byte[] dest, int len) {
+        int done = 0;
+        while (done < len) {
+            long p = pos + done;
+            MappedByteBuffer w = windows[(int) (p >>> windowBits)];
+            int off = (int) (p & windowMask);
+            int n = Math.min(len - done, w.limit() - off);
+            ByteBuffer buf = w.duplicate(); // thread-safe relative get
+            buf.position(off);
+            buf.get(dest, done, n);
+            done += n;
+        }
+    }
+}
@@ -81,7 +81,14 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import org.apache.log4j.Logger;
@@ -96,99 +103,264 @@ import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowMapper;
 
 /**
- *
+ * Iterate over DeletedNodeEvent(s) in the source in (lastModified, nodeID) order,
+ * starting after the specified event. The default is to stream all events through
+ * a single forward-only cursor with the configured fetch size. In paged mode 
+ * (for when a long running cursor is not acceptable) events are read in pages of
+ * fetch size with keyset paging on (lastModified, nodeID) and the next page is 
+ * queried in the background while the current one is consumed. Paged mode is always 
+ * used when the source throttle has a rows limit because rows are only charged between
+ * queries.
+ * 
  * @author pdowler
  */
 public class SourceDeletedNodeEventIterator implements ResourceIterator<DeletedNodeEvent> {
     private static final Logger log = Logger.getLogger(SourceDeletedNodeEventIterator.class);
 
-    private int batchSize = 1000;
-    private Iterator<DeletedNodeEvent> batch;
-    private Date curLastModified;
-    private UUID curID;
-    
+    private final DataSource ds;
+    private final int fetchSize;
+    private final boolean paged;
     private final DNEMapper rowMapper = new DNEMapper();
     private final Calendar utc = Calendar.getInstance(DateUtil.UTC);
     
+    private DeletedNodeEvent next;
+    
+    // streaming
+    private Connection conn;
+    private PreparedStatement stmt;
+    private ResultSet rs;
+    private int row = 0;
+    
+    // paged
+    private Iterator<DeletedNodeEvent> page;
+    private Future<List<DeletedNodeEvent>> nextPage;
+    private ExecutorService prefetchThread;
+    
+    /**
+     * Stream all events after the specified one with the default fetch size (1000).
+     * 
+     * @param curLastModified lastModified of the last processed event or null to start at the beginning
+     * @param curID ID of the last processed event or null
+     */
     public SourceDeletedNodeEventIterator(Date curLastModified, UUID curID) {
-        this.curLastModified = curLastModified;
-        this.curID = curID;
-        advance();
+        this(curLastModified, curID, 1000, false);
+    }
+    
+    /**
+     * Iterate over events after the specified one.
+     * 
+     * @param curLastModified lastModified of the last processed event or null to start at the beginning
+     * @param curID ID of the last processed event or null
+     * @param fetchSize cursor fetch size (streaming) or page size (paged)
+     * @param paged true for keyset paging, false for a single streaming cursor
+     */
+    public SourceDeletedNodeEventIterator(Date curLastModified, UUID curID, int fetchSize, boolean paged) {
+        this.fetchSize = fetchSize;
+        // rows are charged to the throttle between queries: a rows limit needs pages
+        this.paged = paged || SourceThrottle.get().isRowLimited();
+        if (this.paged && !paged) {
+            log.info("source rows limit set: reading DeletedNodeEvent(s) in keyset pages");
+        }
+        try {
+            this.ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
+        }
+        Long curNodeID = (curID == null ? null : curID.getLeastSignificantBits());
+        KeysetStatement ks = new KeysetStatement(curLastModified, curNodeID);
+        try {
+            if (paged) {
+                this.prefetchThread = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+                this.nextPage = prefetchThread.submit(new PageQuery(ks));
+            } else {
+                SourceThrottle.get().query();
+                this.conn = ds.getConnection();
+                this.stmt = ks.createPreparedStatement(conn);
+                log.debug("execute: fetchSize=" + fetchSize);
+                this.rs = stmt.executeQuery();
+            }
+            advance();
+        } catch (SQLException ex) {
+            closeQuietly();
+            throw new RuntimeException("failed to query DeletedNodeEvent: " + ex, ex);
+        } catch (RuntimeException ex) {
+            closeQuietly();
+            throw ex;
+        }
     }
 
     @Override
     public boolean hasNext() {
-        return (batch != null);
+        return (next != null);
     }
 
     @Override
     public DeletedNodeEvent next() {
-        DeletedNodeEvent ret = batch.next();
-        curLastModified = ret.getLastModified();
-        curID = ret.getID();
-        advance();
-        
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        DeletedNodeEvent ret = next;
+        try {
+            advance();
+        } catch (SQLException ex) {
+            closeQuietly();
+            throw new RuntimeException("failed to read DeletedNodeEvent: " + ex, ex);
+        }
         return ret;
     }
     
-    private void advance() {
-        // cal from ctor or next
-        if (batch == null || !batch.hasNext()) {
-            this.batch = null;
-            List<DeletedNodeEvent> deleted = getBatch(curLastModified);
-            if (!deleted.isEmpty()) {
-                DeletedNodeEvent dne = deleted.get(0);
-                this.batch = deleted.iterator();
-                if (dne.getID().equals(curID)) {
-                    batch.next(); // skip duplicate
-                }
-                if (!batch.hasNext()) {
-                    batch = null; // done
-                }
+    private void advance() throws SQLException {
+        this.next = null;
+        if (!paged) {
+            if (rs != null && rs.next()) {
+                this.next = rowMapper.mapRow(rs, row++);
+            } else {
+                closeQuietly(); // done: release the connection early
             }
+            return;
+        }
+        
+        if (page != null && page.hasNext()) {
+            this.next = page.next();
+            return;
+        }
+        if (nextPage == null) {
+            return; // done
+        }
+        List<DeletedNodeEvent> events = waitForPage();
+        this.nextPage = null;
+        if (events.size() == fetchSize) {
+            // full page: start query for the next one
+            DeletedNodeEvent last = events.get(events.size() - 1);
+            KeysetStatement ks = new KeysetStatement(last.getLastModified(), last.getID().getLeastSignificantBits());
+            this.nextPage = prefetchThread.submit(new PageQuery(ks));
+        }
+        this.page = events.iterator();
+        if (page.hasNext()) {
+            this.next = page.next();
+        }
+    }
+    
+    private List<DeletedNodeEvent> waitForPage() {
+        try {
+            return nextPage.get();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException("interrupted waiting for DeletedNodeEvent page", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("failed to query DeletedNodeEvent: " + cause, cause);
         }
     }
 
     @Override
     public void close() throws IOException {
-        // no-op since we are batching instead
+        closeQuietly();
+    }
+    
+    private void closeQuietly() {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (SQLException ex) {
+                log.debug("close ResultSet: " + ex);
+            }
+            rs = null;
+        }
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException ex) {
+                log.debug("close Statement: " + ex);
+            }
+            stmt = null;
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                log.debug("close Connection: " + ex);
+            }
+            conn = null;
+        }
+        if (prefetchThread != null) {
+            prefetchThread.shutdownNow();
+            prefetchThread = null;
+            nextPage = null;
+        }
     }
 
-    private List<DeletedNodeEvent> getBatch(Date minLastModified) {
-        try {
-            DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+    private class PageQuery implements Callable<List<DeletedNodeEvent>> {
+        private final KeysetStatement ks;
+
+        PageQuery(KeysetStatement ks) {
+            this.ks = ks;
+        }
+        
+        @Override
+        public List<DeletedNodeEvent> call() throws Exception {
             JdbcTemplate jdbc = new JdbcTemplate(ds);
-            BatchStatement batch = new BatchStatement();
-            batch.minLastModified = minLastModified;
-            List<DeletedNodeEvent> ret = jdbc.query(batch, rowMapper);
+            long t1 = System.currentTimeMillis();
+            SourceThrottle.get().query();
+            List<DeletedNodeEvent> ret = jdbc.query(ks, rowMapper);
+            SourceThrottle.get().rows(ret.size());
+            log.debug("page: " + ret.size() + " events in " + (System.currentTimeMillis() - t1) + "ms");
             return ret;
-        } catch (NamingException ex) {
-            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
         }
     }
     
-    private class BatchStatement implements PreparedStatementCreator {
-        Date minLastModified;
+    // events after (lastModified, nodeID) in key order
+    private class KeysetStatement implements PreparedStatementCreator {
+        private final Date lastModified;
+        private final Long nodeID;
+        
+        KeysetStatement(Date lastModified, Long nodeID) {
+            this.lastModified = lastModified;
+            this.nodeID = nodeID;
+        }
         
         @Override
         public PreparedStatement createPreparedStatement(Connection conn) throws SQLException {
             StringBuilder sb = new StringBuilder();
-            sb.append("SELECT TOP ").append(batchSize);
-            sb.append(" nodeID, nodeType, bucket, lastModified FROM DeletedNodeEvent");
-            if (minLastModified != null) {
-                sb.append(" WHERE lastModified >= ?");
+            sb.append("SELECT ");
+            if (paged) {
+                sb.append("TOP ").append(fetchSize).append(" ");
+            }
+            sb.append("nodeID, nodeType, bucket, lastModified FROM DeletedNodeEvent");
+            if (lastModified != null) {
+                if (nodeID != null) {
+                    // leading range predicate on lastModified so the index can be used to seek
+                    sb.append(" WHERE lastModified >= ? AND (lastModified > ? OR nodeID > ?)");
+                } else {
+                    sb.append(" WHERE lastModified >= ?");
+                }
             }
-            sb.append(" ORDER BY  lastModified");
+            sb.append(" ORDER BY lastModified, nodeID");
             String sql = sb.toString();
             log.debug("SQL: " + sql);
-            PreparedStatement prep = conn.prepareStatement(sql);
-            if (minLastModified != null) {
-                prep.setTimestamp(1, new Timestamp(minLastModified.getTime()), utc);
+            PreparedStatement prep = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            prep.setFetchSize(fetchSize);
+            if (lastModified != null) {
+                Timestamp ts = new Timestamp(lastModified.getTime());
+                prep.setTimestamp(1, ts, utc);
+                if (nodeID != null) {
+                    prep.setTimestamp(2, ts, utc);
+                    prep.setLong(3, nodeID);
+                }
             }
-            
             return prep;
         }
-        
+    }
+    
+    private static class DaemonThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SourceDeletedNodeEventIterator.prefetch");
+            t.setDaemon(true);
+            return t;
+        }
     }
 
     private class DNEMapper implements RowMapper<DeletedNodeEvent> {
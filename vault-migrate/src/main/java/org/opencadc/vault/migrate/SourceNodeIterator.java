@@ -75,23 +75,40 @@ import ca.nrc.cadc.vos.NodeProperty;
 import ca.nrc.cadc.vos.VOSURI;
 import ca.nrc.cadc.vos.server.db.DatabaseNodePersistence;
 import ca.nrc.cadc.vospace.VOSpaceNodePersistence;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.text.DateFormat;
-import java.text.ParseException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import org.apache.log4j.Logger;
+import org.opencadc.inventory.db.Util;
 import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
 
 /**
  *
@@ -100,6 +117,9 @@ import org.springframework.jdbc.core.ResultSetExtractor;
 public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
     private static final Logger log = Logger.getLogger(SourceNodeIterator.class);
 
+    // target max rows per NodeProperty range query
+    private static final long RANGE_ROWS = 100000L;
+
     private final DatabaseNodePersistence nodePer;
     
     private final LinkedList<Node> batch = new LinkedList<>();
@@ -108,27 +128,104 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
     private Node curNode;
     private boolean lastBatchPartial;
     
-    private final Map<Long,List<NodeProperty>> propMap;
+    private final PropertyLookup propCache;
+    private PropertyCache batchProps; // scoped mode: properties of nodes in the current batch
+    private JdbcTemplate propJdbc;
+    private int pageSize = 1000;
+    private boolean recursive = true;
+    private Set<URI> exclude = Collections.emptySet();
+    private ExecutorService prefetchThread;
+    private Fetch prefetch;
+    
     int maxRecursionQueueSize = 0;
-    long timeQuerying = 0L;
+    long timeQuerying = 0L; // source query time
+    long timeWaiting = 0L; // time next() was blocked waiting for a query
     
-    public SourceNodeIterator(DatabaseNodePersistence nodePer, Map<Long,List<NodeProperty>> propMap) {
+    /**
+     * Constructor. If the property cache is null, properties are queried for each batch
+     * of child nodes (scoped mode) instead of being loaded for all nodes in advance.
+     * 
+     * @param nodePer source persistence
+     * @param propCache property cache or null for scoped mode
+     */
+    public SourceNodeIterator(DatabaseNodePersistence nodePer, PropertyLookup propCache) {
         this.nodePer = nodePer;
-        this.propMap = propMap;
-        
-        
-        try {
-            // hard coded incremental listing hack
-            String startDate = null; // "2024-02-01T00:00:00.000";
-            if (startDate != null) {
-                DateFormat df = DateUtil.getDateFormat(DateUtil.IVOA_DATE_FORMAT, DateUtil.UTC);
-                ca.nrc.cadc.vos.server.db.NodeDAO.INCREMENTAL_HACK = df.parse(startDate);
+        this.propCache = propCache;
+        if (propCache == null) {
+            try {
+                DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+                this.propJdbc = new JdbcTemplate(ds);
+            } catch (NamingException ex) {
+                throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
             }
-        } catch (ParseException ex) {
-            throw new RuntimeException("BUG: invalid hard-coded INCREMENTAL_HACK", ex);
         }
     }
     
+    /**
+     * Limit child listings in the source to nodes modified since the specified time. 
+     * This is global (all iterators) because the source NodeDAO only supports a
+     * static incremental start date.
+     * 
+     * @param since start of incremental listing or null for full listing
+     */
+    static void setIncremental(Date since) {
+        ca.nrc.cadc.vos.server.db.NodeDAO.INCREMENTAL_HACK = since;
+    }
+    
+    /**
+     * Get the most recent lastModified in the source. This uses the source clock so
+     * it is safe to use as the start of the next incremental run.
+     * 
+     * @return max lastModified of all nodes or null if the source is empty
+     */
+    static Date getSourceWatermark() {
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            Calendar utc = Calendar.getInstance(DateUtil.UTC);
+            SourceThrottle.get().query();
+            Date ret = jdbc.query("SELECT max(lastModified) FROM Node", new WatermarkExtractor(utc));
+            SourceThrottle.get().rows(1L);
+            return ret;
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
+        }
+    }
+    
+    /**
+     * Enable or disable recursion into child containers.
+     * 
+     * @param recursive false to only iterate over the direct children (default: true)
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+    
+    /**
+     * Set containers that are migrated separately: they are iterated as nodes
+     * but the iterator does not descend into them.
+     * 
+     * @param exclude container URIs
+     */
+    public void setExclude(Set<URI> exclude) {
+        this.exclude = exclude;
+    }
+    
+    // check if the iterator should descend into the current node
+    private boolean isDescendable(Node n) {
+        return recursive && n instanceof ContainerNode 
+                && (exclude.isEmpty() || !exclude.contains(n.getUri().getURI()));
+    }
+    
+    /**
+     * Set the number of child nodes to get per query.
+     * 
+     * @param pageSize max child nodes per query (default: 1000)
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+    
     public void setContainer(ContainerNode curParent) {
         this.curParent = curParent;
         // start new base parent
@@ -136,51 +233,358 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
         this.lastBatchPartial = false;
         batch.clear();          
         recursionQueue.clear();
+        discardPrefetch();
         advance();
     }
     
-    static final Map<Long,List<NodeProperty>> initPropMap() {
+    /**
+     * Restart iteration of a container after the specified node. The recursion stack is
+     * rebuilt from the path to that node: for each ancestor, the child containers that
+     * sort before the next path element are still pending, as are the child containers
+     * of the last parent up to and including the node itself. If the node no longer
+     * exists the container is iterated from the start.
+     * 
+     * @param root the container originally passed to setContainer
+     * @param lastNodeID source nodeID of the last node that was migrated
+     * @param exclude URIs of pending containers that are migrated separately
+     */
+    public void resume(ContainerNode root, long lastNodeID, Set<URI> exclude) {
+        JdbcTemplate jdbc;
         try {
             DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
-            String sql = "SELECT nodeID, propertyURI, propertyValue FROM NodeProperty order by nodeID";
+            jdbc = new JdbcTemplate(ds);
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
+        }
+        long rootID = ((ca.nrc.cadc.vos.server.NodeID) root.appData).id;
+        
+        // path from root to the last node
+        LinkedList<String> path = new LinkedList<>();
+        Long cur = lastNodeID;
+        SourceThrottle throttle = SourceThrottle.get();
+        while (cur != null && cur != rootID) {
+            throttle.query();
+            List<Object[]> rows = jdbc.query("SELECT parentID, name FROM Node WHERE nodeID = ?", 
+                    new Object[] {cur}, new ParentRowMapper());
+            throttle.rows(rows.size());
+            if (rows.isEmpty()) {
+                cur = null;
+            } else {
+                path.addFirst((String) rows.get(0)[1]);
+                cur = (Long) rows.get(0)[0];
+            }
+        }
+        if (cur == null) {
+            log.warn("resume: node " + lastNodeID + " not found below " + root.getUri() + ": restart container");
+            setContainer(root);
+            return;
+        }
+        
+        this.curParent = null;
+        this.curNode = null;
+        this.lastBatchPartial = false;
+        batch.clear();
+        recursionQueue.clear();
+        discardPrefetch();
+        
+        String sql = "SELECT name FROM Node WHERE parentID = ? AND type = 'C' AND name < ? ORDER BY name";
+        String lastSQL = "SELECT name FROM Node WHERE parentID = ? AND type = 'C' AND name <= ? ORDER BY name";
+        ContainerNode parent = root;
+        Iterator<String> pi = path.iterator();
+        while (pi.hasNext()) {
+            String name = pi.next();
+            long pid = ((ca.nrc.cadc.vos.server.NodeID) parent.appData).id;
+            throttle.query();
+            List<String> pending = jdbc.query(pi.hasNext() ? sql : lastSQL, new Object[] {pid, name}, 
+                    new SingleColumnRowMapper<String>(String.class));
+            throttle.rows(pending.size());
+            for (String pn : pending) {
+                Node cn = getChild(parent, pn);
+                if (cn != null && !exclude.contains(cn.getUri().getURI())) {
+                    recursionQueue.push((ContainerNode) cn);
+                }
+            }
+            Node child = getChild(parent, name);
+            if (child == null) {
+                log.warn("resume: " + name + " not found in " + parent.getUri() + ": restart container");
+                setContainer(root);
+                return;
+            }
+            if (pi.hasNext()) {
+                parent = (ContainerNode) child;
+            } else {
+                this.curNode = child;
+            }
+        }
+        this.curParent = parent;
+        maxRecursionQueueSize = Math.max(maxRecursionQueueSize, recursionQueue.size());
+        log.info("resume: " + root.getUri().getPath() + " after " + curNode.getUri().getPath() 
+                + " pending containers: " + recursionQueue.size());
+        advance(); // next page after curNode
+    }
+    
+    private Node getChild(ContainerNode parent, String name) {
+        SourceThrottle.get().query();
+        nodePer.getChild(parent, name);
+        Node ret = null;
+        if (!parent.getNodes().isEmpty()) {
+            ret = parent.getNodes().get(0);
+            SourceThrottle.get().rows(1L);
+        }
+        parent.getNodes().clear();
+        return ret;
+    }
+    
+    private static class ParentRowMapper implements RowMapper<Object[]> {
+        @Override
+        public Object[] mapRow(ResultSet rs, int i) throws SQLException {
+            long pid = rs.getLong(1);
+            Long parentID = (rs.wasNull() ? null : pid);
+            return new Object[] {parentID, rs.getString(2)};
+        }
+    }
+    
+    /**
+     * Stop the background query thread. This is called automatically when iteration
+     * is complete.
+     */
+    public void close() {
+        discardPrefetch();
+        if (prefetchThread != null) {
+            prefetchThread.shutdownNow();
+            prefetchThread = null;
+        }
+    }
+    
+    /**
+     * Remove a queued container so the caller can migrate it independently. The 
+     * oldest queued container is removed since it is the highest in the tree and
+     * most likely to have the largest sub-tree. The current node is never removed
+     * because it has not been returned by next() yet, and the container being prefetched
+     * is not removed because its first page is already being queried.
+     * 
+     * @return a container node or null if there is nothing to split off
+     */
+    ContainerNode split() {
+        if (recursionQueue.isEmpty() || recursionQueue.getLast() == curNode) {
+            return null;
+        }
+        if (prefetch != null && prefetch.parent == recursionQueue.getLast()) {
+            return null;
+        }
+        ContainerNode ret = recursionQueue.removeLast();
+        log.debug("split: " + ret.getUri());
+        return ret;
+    }
+    
+    /**
+     * Load all source node properties. The NodeProperty table is split into nodeID
+     * ranges that are loaded concurrently and then merged.
+     * 
+     * @param threads number of concurrent range queries
+     * @return property cache
+     */
+    static final PropertyCache initPropertyCache(int threads) {
+        try {
+            final DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
             JdbcTemplate jdbc = new JdbcTemplate(ds);
             log.info("building NodeProperty cache ...");
-            NPRowMapper npr = new NPRowMapper();
-            Map<Long,List<NodeProperty>> ret = jdbc.query(sql, npr);
-            log.info("NodeProperty cache: " + npr.numProps + " props for " + ret.size() + " distinct nodes");
+            long t1 = System.currentTimeMillis();
+            SourceThrottle.get().query();
+            long[] bounds = jdbc.query("SELECT min(nodeID), max(nodeID), count(*) FROM NodeProperty", new IDRangeExtractor());
+            if (bounds == null) {
+                log.info("NodeProperty cache: no properties");
+                return new PropertyCache();
+            }
+            
+            // more ranges than threads so uneven ranges balance out, and enough ranges that
+            // each query returns at most ~RANGE_ROWS (assuming uniform nodeID distribution)
+            // so the source throttle is charged in small steps between queries
+            long minRanges = bounds[2] / RANGE_ROWS + 1L;
+            int numRanges = (int) Math.max(threads > 1 ? 4L * threads : 1L, minRanges);
+            long min = bounds[0];
+            long max = bounds[1] + 1L;
+            long step = Math.max(1L, (max - min) / numRanges + 1L);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<PropertyCache>> parts = new ArrayList<>();
+            try {
+                for (long start = min; start < max; start += step) {
+                    parts.add(pool.submit(new RangeLoader(ds, start, Math.min(start + step, max))));
+                }
+                List<PropertyCache> loaded = new ArrayList<>(parts.size());
+                for (Future<PropertyCache> f : parts) {
+                    loaded.add(f.get());
+                }
+                PropertyCache ret = PropertyCache.merge(loaded);
+                long dt = System.currentTimeMillis() - t1;
+                log.info("NodeProperty cache: " + ret.getNumProperties() + " props for " + ret.getNumNodes() 
+                        + " distinct nodes from " + parts.size() + " ranges in " + dt + " ms: " + ret);
+                return ret;
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("interrupted while building NodeProperty cache", ex);
+            } catch (ExecutionException ex) {
+                throw new RuntimeException("failed to build NodeProperty cache", ex.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
+        }
+    }
+    
+    /**
+     * Load source node properties using a local snapshot file. If the file does not 
+     * exist, the properties are loaded from the source and written to the file along 
+     * with the source watermark (latest node lastModified at the start of the load). 
+     * If the file exists, it is mapped into memory and only the properties of nodes
+     * modified since the watermark are loaded from the source.
+     * 
+     * @param f snapshot file
+     * @param threads number of concurrent range queries for a full load
+     * @return property lookup
+     * @throws IOException failure to read or write the snapshot file
+     */
+    static final PropertyLookup initPropertySnapshot(File f, int threads) throws IOException {
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            Calendar utc = Calendar.getInstance(DateUtil.UTC);
+            if (!f.exists()) {
+                Date watermark = getSourceWatermark();
+                if (watermark == null) {
+                    watermark = new Date(0L);
+                }
+                PropertyCache ret = initPropertyCache(threads);
+                long t1 = System.currentTimeMillis();
+                File tmp = new File(f.getAbsolutePath() + ".tmp");
+                ret.writeSnapshot(tmp, watermark);
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("failed to rename " + tmp + " -> " + f);
+                }
+                long dt = System.currentTimeMillis() - t1;
+                log.info("NodeProperty snapshot: wrote " + f + " (" + f.length() + " bytes) in " + dt + " ms");
+                return ret;
+            }
+            
+            PropertySnapshot ret = PropertySnapshot.open(f);
+            long t1 = System.currentTimeMillis();
+            final Timestamp ts = new Timestamp(ret.getWatermark().getTime());
+            String csql = "SELECT nodeID FROM Node WHERE lastModified >= ? ORDER BY nodeID";
+            SourceThrottle.get().query();
+            List<Long> ids = jdbc.query(new WatermarkStatement(csql, ts, utc), new SingleColumnRowMapper<Long>(Long.class));
+            SourceThrottle.get().rows(ids.size());
+            long[] changed = new long[ids.size()];
+            for (int i = 0; i < changed.length; i++) {
+                changed[i] = ids.get(i);
+            }
+            String psql = "SELECT np.nodeID, np.propertyURI, np.propertyValue FROM NodeProperty np, Node n"
+                    + " WHERE np.nodeID = n.nodeID AND n.lastModified >= ? ORDER BY np.nodeID";
+            PropertyCache delta = new PropertyCache();
+            SourceThrottle.get().query();
+            jdbc.query(new WatermarkStatement(psql, ts, utc), new NPRowCallback(delta));
+            SourceThrottle.get().rows(delta.getNumProperties());
+            delta.trim();
+            ret.setDelta(changed, delta);
+            long dt = System.currentTimeMillis() - t1;
+            log.info("NodeProperty snapshot: " + changed.length + " nodes modified since snapshot, " 
+                    + delta.getNumProperties() + " props loaded in " + dt + " ms: " + ret);
             return ret;
         } catch (NamingException ex) {
             throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
         }
     }
     
-    private static class NPRowMapper implements ResultSetExtractor<Map<Long,List<NodeProperty>>> {
+    private static class WatermarkStatement implements PreparedStatementCreator {
+        private final String sql;
+        private final Timestamp watermark;
+        private final Calendar utc;
 
-        long numProps = 0L;
+        WatermarkStatement(String sql, Timestamp watermark, Calendar utc) {
+            this.sql = sql;
+            this.watermark = watermark;
+            this.utc = utc;
+        }
         
         @Override
-        public Map<Long,List<NodeProperty>> extractData(ResultSet rs) throws SQLException, DataAccessException {
-            Long id = null;
-            List<NodeProperty> props = null;
-            Map<Long,List<NodeProperty>> map = new HashMap<>();
-            int numID = 0;
-            while (rs.next()) {
-                Long nid = rs.getLong(1);
-                if (id == null || !id.equals(nid)) {
-                    if (id != null && props != null && !props.isEmpty()) {
-                        map.put(id, props);
-                    }
-                    // restart current
-                    props = new ArrayList<>();
-                    id = nid;
+        public PreparedStatement createPreparedStatement(Connection conn) throws SQLException {
+            log.debug("SQL: " + sql);
+            PreparedStatement prep = conn.prepareStatement(sql);
+            prep.setTimestamp(1, watermark, utc);
+            return prep;
+        }
+    }
+    
+    private static class WatermarkExtractor implements ResultSetExtractor<Date> {
+        private final Calendar utc;
+
+        WatermarkExtractor(Calendar utc) {
+            this.utc = utc;
+        }
+        
+        @Override
+        public Date extractData(ResultSet rs) throws SQLException, DataAccessException {
+            if (rs.next()) {
+                return Util.getDate(rs, 1, utc);
+            }
+            return null;
+        }
+    }
+    
+    private static class RangeLoader implements Callable<PropertyCache> {
+        private final DataSource ds;
+        private final long start;
+        private final long end;
+
+        RangeLoader(DataSource ds, long start, long end) {
+            this.ds = ds;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        public PropertyCache call() throws Exception {
+            String sql = "SELECT nodeID, propertyURI, propertyValue FROM NodeProperty"
+                    + " WHERE nodeID >= ? AND nodeID < ? order by nodeID";
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            PropertyCache ret = new PropertyCache();
+            long t1 = System.currentTimeMillis();
+            SourceThrottle.get().query();
+            jdbc.query(sql, new Object[] { start, end }, new NPRowCallback(ret));
+            SourceThrottle.get().rows(ret.getNumProperties());
+            ret.trim();
+            long dt = System.currentTimeMillis() - t1;
+            log.debug("NodeProperty range [" + start + "," + end + "): " + ret.getNumProperties() + " props " + dt + " ms");
+            return ret;
+        }
+    }
+    
+    private static class IDRangeExtractor implements ResultSetExtractor<long[]> {
+        @Override
+        public long[] extractData(ResultSet rs) throws SQLException, DataAccessException {
+            if (rs.next()) {
+                long min = rs.getLong(1);
+                if (rs.wasNull()) {
+                    return null; // empty table
                 }
-                // add to current
-                String uri = rs.getString(2);
-                String val = rs.getString(3);
-                props.add(new NodeProperty(uri, val));
-                numProps++;
+                return new long[] { min, rs.getLong(2), rs.getLong(3) };
             }
-            return map;
+            return null;
+        }
+    }
+    
+    private static class NPRowCallback implements RowCallbackHandler {
+        private final PropertyCache cache;
+
+        NPRowCallback(PropertyCache cache) {
+            this.cache = cache;
+        }
+        
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            long nid = rs.getLong(1);
+            String uri = rs.getString(2);
+            String val = rs.getString(3);
+            cache.add(nid, uri, val);
         }
     }
     
@@ -196,7 +600,8 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
         }
         Node ret = curNode;
         ca.nrc.cadc.vos.server.NodeID nid = (ca.nrc.cadc.vos.server.NodeID) ret.appData;
-        List<NodeProperty> props = propMap.get(nid.id);
+        PropertyLookup lookup = (propCache != null ? propCache : batchProps);
+        List<NodeProperty> props = lookup.get(nid.id);
         if (props != null) {
             ret.getProperties().addAll(props);
         }
@@ -209,6 +614,32 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
         throw new UnsupportedOperationException();
     }
     
+    // scoped mode: one query for the properties of all nodes in the batch, merged 
+    // into a small cache in nodeID order
+    private PropertyCache getBatchProperties(List<Node> nodes) {
+        PropertyCache ret = new PropertyCache();
+        if (nodes.isEmpty()) {
+            return ret;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("SELECT nodeID, propertyURI, propertyValue FROM NodeProperty WHERE nodeID IN (");
+        boolean first = true;
+        for (Node n : nodes) {
+            ca.nrc.cadc.vos.server.NodeID nid = (ca.nrc.cadc.vos.server.NodeID) n.appData;
+            if (!first) {
+                sb.append(",");
+            }
+            sb.append(nid.id);
+            first = false;
+        }
+        sb.append(") ORDER BY nodeID");
+        SourceThrottle.get().query();
+        propJdbc.query(sb.toString(), new NPRowCallback(ret));
+        SourceThrottle.get().rows(ret.getNumProperties());
+        log.debug("advance: found " + ret.getNumProperties() + " props for " + ret.getNumNodes() + " nodes");
+        return ret;
+    }
+    
     // this impl avoids recusrion in favour of a loop
     private void advance() {
         boolean adv = advanceLoop();
@@ -222,7 +653,7 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
         // shift to next node in batch
         if (!batch.isEmpty()) {
             curNode = batch.pop();
-            if (curNode instanceof ContainerNode) {
+            if (isDescendable(curNode)) {
                 log.debug("recursionQueue.push: " + curNode.getUri());
                 recursionQueue.push((ContainerNode) curNode);
                 maxRecursionQueueSize = Math.max(maxRecursionQueueSize, recursionQueue.size());
@@ -238,13 +669,12 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
             }
             
             log.debug("advance: query " + curParent.getUri() + " from " + vuri);
-            long start = System.currentTimeMillis();
-            nodePer.getChildren(curParent, vuri, 1000);
-            this.timeQuerying += System.currentTimeMillis() - start;
-            batch.addAll(curParent.getNodes());
-            curParent.getNodes().clear();
+            Page page = getPage(curParent, vuri);
+            batch.addAll(page.nodes);
+            this.batchProps = page.props;
             log.debug("advance: found " + batch.size());
-            lastBatchPartial = (batch.size() < 1000);
+            lastBatchPartial = (batch.size() < pageSize);
+            startPrefetch();
             curNode = null;
             if (!batch.isEmpty()) {
                 curNode = batch.pop();
@@ -257,7 +687,7 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
                 }
             }
             if (curNode != null) {
-                if (curNode instanceof ContainerNode) {
+                if (isDescendable(curNode)) {
                     log.debug("recursionQueue.push: " + curNode.getUri());
                     recursionQueue.push((ContainerNode) curNode);
                     maxRecursionQueueSize = Math.max(maxRecursionQueueSize, recursionQueue.size());
@@ -281,6 +711,147 @@ public class SourceNodeIterator implements Iterator<ca.nrc.cadc.vos.Node> {
             // new parent but avoid recursion
             return false;
         }
+        close();
         return true; // done
     }
+    
+    // get the next page of children, from the prefetch if it matches
+    private Page getPage(ContainerNode parent, VOSURI start) {
+        long t1 = System.currentTimeMillis();
+        Page ret = null;
+        if (prefetch != null) {
+            if (prefetch.parent == parent && (start == null ? prefetch.start == null : start.equals(prefetch.start))) {
+                ret = prefetch.get();
+                prefetch = null;
+            } else {
+                log.debug("prefetch miss: " + parent.getUri() + " from " + start);
+                discardPrefetch();
+            }
+        }
+        if (ret == null) {
+            ret = new Fetch(parent, start).call();
+        }
+        this.timeWaiting += System.currentTimeMillis() - t1;
+        this.timeQuerying += ret.queryTime;
+        return ret;
+    }
+    
+    // start query for the page that will be needed when the current batch is done:
+    // the next page in curParent or the first page of the next container
+    private void startPrefetch() {
+        ContainerNode parent = null;
+        VOSURI start = null;
+        if (!lastBatchPartial) {
+            parent = curParent;
+            start = batch.getLast().getUri();
+        } else if (recursive) {
+            // next parent is the last container pushed: last in batch or top of queue;
+            // same test as advance() so excluded containers are not queried
+            for (Node n : batch) {
+                if (isDescendable(n)) {
+                    parent = (ContainerNode) n;
+                }
+            }
+            if (parent == null) {
+                parent = recursionQueue.peekFirst();
+            }
+        }
+        if (parent != null) {
+            if (prefetchThread == null) {
+                prefetchThread = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+            }
+            log.debug("prefetch: " + parent.getUri() + " from " + start);
+            this.prefetch = new Fetch(parent, start);
+            prefetch.future = prefetchThread.submit(prefetch);
+        }
+    }
+    
+    // wait for outstanding prefetch and drop the result
+    private void discardPrefetch() {
+        if (prefetch != null) {
+            try {
+                prefetch.future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                log.debug("discard prefetch: " + ex);
+            }
+            prefetch = null;
+        }
+    }
+    
+    private static class Page {
+        List<Node> nodes;
+        PropertyCache props;
+        long queryTime;
+    }
+    
+    private class Fetch implements Callable<Page> {
+        final ContainerNode parent;
+        final VOSURI start;
+        Future<Page> future;
+        
+        Fetch(ContainerNode parent, VOSURI start) {
+            this.parent = parent;
+            this.start = start;
+        }
+        
+        @Override
+        public Page call() {
+            MigrateEvents.ChildBatchQuery event = null;
+            if (MigrateEvents.Support.AVAILABLE) {
+                event = new MigrateEvents.ChildBatchQuery();
+                event.begin();
+            }
+            long t1 = System.nanoTime();
+            Page ret = new Page();
+            SourceThrottle throttle = SourceThrottle.get();
+            throttle.query();
+            // query into a local copy: the parent may already be in use by other threads
+            ContainerNode tmp = new ContainerNode(parent.getUri());
+            tmp.appData = parent.appData;
+            nodePer.getChildren(tmp, start, pageSize);
+            ret.nodes = new ArrayList<>(tmp.getNodes());
+            throttle.rows(ret.nodes.size());
+            if (propCache == null) {
+                ret.props = getBatchProperties(ret.nodes);
+            }
+            long dt = System.nanoTime() - t1;
+            MigrateMetrics.get().sourceQuery.observe(dt);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.container = parent.getUri().getPath();
+                    event.start = (start == null ? null : start.getName());
+                    event.rows = ret.nodes.size();
+                    event.commit();
+                }
+            }
+            ret.queryTime = dt / (1000L * 1000L);
+            return ret;
+        }
+        
+        Page get() {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException("interrupted waiting for " + parent.getUri(), ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException("failed to get children of " + parent.getUri(), cause);
+            }
+        }
+    }
+    
+    private static class DaemonThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SourceNodeIterator.prefetch");
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -0,0 +1,264 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Global limit on the load put on the source database: token buckets for queries/sec
+ * and rows/sec shared by all source readers. The limits can be changed while running
+ * by editing a config file with the properties:
+ * <pre>
+ * queries = {max source queries per second, 0 for unlimited}
+ * rows = {max source rows per second, 0 for unlimited}
+ * </pre>
+ * The file is checked for changes every 10 seconds. Rows are charged after a query 
+ * returns and its result set is closed, so a large result delays the next query
+ * instead of holding a source cursor (and locks) open while waiting. Readers keep 
+ * individual queries small so that the rows limit stays meaningful.
+ * 
+ * @author pdowler
+ */
+public class SourceThrottle {
+    private static final Logger log = Logger.getLogger(SourceThrottle.class);
+
+    private static final SourceThrottle INSTANCE = new SourceThrottle();
+    
+    private final TokenBucket queries = new TokenBucket("queries");
+    private final TokenBucket rows = new TokenBucket("rows");
+    private ScheduledExecutorService watcher;
+    
+    private SourceThrottle() {
+    }
+    
+    /**
+     * @return the throttle for this process
+     */
+    public static SourceThrottle get() {
+        return INSTANCE;
+    }
+    
+    /**
+     * Wait for permission to execute one source query.
+     */
+    public void query() {
+        queries.acquire(1);
+    }
+    
+    /**
+     * Charge rows read from the source.
+     * 
+     * @param num number of rows
+     */
+    public void rows(long num) {
+        rows.acquire(num);
+    }
+    
+    /**
+     * @return true if rows/sec is currently limited
+     */
+    public boolean isRowLimited() {
+        return rows.isLimited();
+    }
+    
+    /**
+     * Set the limits.
+     * 
+     * @param queriesPerSec max queries per second, 0 for unlimited
+     * @param rowsPerSec max rows per second, 0 for unlimited
+     */
+    public void setLimits(double queriesPerSec, double rowsPerSec) {
+        queries.setRate(queriesPerSec);
+        rows.setRate(rowsPerSec);
+    }
+    
+    /**
+     * Load limits from the specified file now and whenever it changes.
+     * 
+     * @param f config file
+     * @throws IOException failure to read the file
+     */
+    public synchronized void watch(File f) throws IOException {
+        ConfigWatcher cw = new ConfigWatcher(f);
+        cw.load();
+        this.watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SourceThrottle.watch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(cw, 10L, 10L, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public String toString() {
+        return "SourceThrottle[" + queries + "," + rows + "]";
+    }
+    
+    private class ConfigWatcher implements Runnable {
+        private final File f;
+        private long lastModified = 0L;
+        
+        ConfigWatcher(File f) {
+            this.f = f;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (f.lastModified() != lastModified) {
+                    load();
+                }
+            } catch (Exception ex) {
+                log.warn("failed to reload " + f + ": " + ex + " -- keeping " + SourceThrottle.this);
+            }
+        }
+        
+        void load() throws IOException {
+            long lm = f.lastModified();
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(f)) {
+                props.load(in);
+            }
+            double q = Double.parseDouble(props.getProperty("queries", "0").trim());
+            double r = Double.parseDouble(props.getProperty("rows", "0").trim());
+            setLimits(q, r);
+            this.lastModified = lm;
+            log.info("loaded " + f + ": " + SourceThrottle.this);
+        }
+    }
+    
+    // token bucket with a burst of one second; acquire may go into debt and the caller
+    // waits until the debt is paid
+    private static class TokenBucket {
+        private final String name;
+        private double rate = 0.0; // per second, 0 = unlimited
+        private double tokens = 0.0;
+        private long last = System.nanoTime();
+        
+        TokenBucket(String name) {
+            this.name = name;
+        }
+        
+        synchronized void setRate(double rate) {
+            refill();
+            this.rate = Math.max(0.0, rate);
+            this.tokens = Math.min(tokens, this.rate);
+        }
+        
+        synchronized boolean isLimited() {
+            return rate > 0.0;
+        }
+        
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0.0) {
+                tokens = Math.min(rate, tokens + rate * (now - last) / 1.0e9);
+            }
+            last = now;
+        }
+        
+        void acquire(long num) {
+            long wait;
+            synchronized (this) {
+                if (rate <= 0.0) {
+                    return;
+                }
+                refill();
+                tokens -= num;
+                if (tokens >= 0.0) {
+                    return;
+                }
+                wait = (long) (-tokens / rate * 1000.0);
+            }
+            if (wait > 0L) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        @Override
+        public synchronized String toString() {
+            return name + "=" + (rate > 0.0 ? String.format("%.1f/sec", rate) : "unlimited");
+        }
+    }
+}
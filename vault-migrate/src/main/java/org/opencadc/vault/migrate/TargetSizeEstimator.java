@@ -0,0 +1,218 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.db.DBUtil;
+import ca.nrc.cadc.vos.Node;
+import ca.nrc.cadc.vos.server.NodeID;
+import ca.nrc.cadc.vospace.VOSpaceNodePersistence;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * Pre-flight estimate of the number of nodes under each migration target. The
+ * source has no efficient recursive count so the estimate uses a single aggregate
+ * query of node count by owner: a target (typically a home container) is assigned
+ * the node count of its owner, divided evenly when several targets have the same
+ * owner.
+ * 
+ * @author pdowler
+ */
+public class TargetSizeEstimator {
+    private static final Logger log = Logger.getLogger(TargetSizeEstimator.class);
+
+    private final Map<Node,Long> estimates = new HashMap<>();
+    
+    public TargetSizeEstimator() {
+    }
+    
+    /**
+     * Estimate the size of the targets.
+     * 
+     * @param targets top level nodes to migrate
+     */
+    public void estimate(List<Node> targets) {
+        long t1 = System.currentTimeMillis();
+        Map<String,Long> ownerCounts = getOwnerCounts();
+        Map<String,Integer> shared = new HashMap<>();
+        for (Node n : targets) {
+            String owner = getOwner(n);
+            Integer num = shared.get(owner);
+            shared.put(owner, num == null ? 1 : num + 1);
+        }
+        for (Node n : targets) {
+            String owner = getOwner(n);
+            Long count = ownerCounts.get(owner);
+            long est = 1L;
+            if (count != null) {
+                est = Math.max(1L, count / shared.get(owner));
+            }
+            estimates.put(n, est);
+        }
+        long dt = System.currentTimeMillis() - t1;
+        log.info("size estimate: " + ownerCounts.size() + " owners " + targets.size() + " targets " + dt + " ms");
+    }
+    
+    public long getEstimate(Node n) {
+        Long ret = estimates.get(n);
+        if (ret == null) {
+            return 0L;
+        }
+        return ret;
+    }
+    
+    /**
+     * Sort targets by estimated size, largest first (LPT scheduling order).
+     * 
+     * @param targets list to sort in place
+     */
+    public void sortLargestFirst(List<Node> targets) {
+        Collections.sort(targets, new Comparator<Node>() {
+            @Override
+            public int compare(Node lhs, Node rhs) {
+                return Long.compare(getEstimate(rhs), getEstimate(lhs));
+            }
+        });
+    }
+    
+    /**
+     * Compute the largest per-thread load when the targets (already sorted largest 
+     * first) are assigned greedily to the least loaded thread. This is the expected
+     * number of nodes on the critical path of the run.
+     * 
+     * @param targets sorted targets
+     * @param threads number of worker threads
+     * @return estimated number of nodes migrated by the busiest thread
+     */
+    public long getMakespan(List<Node> targets, int threads) {
+        PriorityQueue<Long> loads = new PriorityQueue<>();
+        for (int i = 0; i < threads; i++) {
+            loads.add(0L);
+        }
+        for (Node n : targets) {
+            long cur = loads.poll();
+            loads.add(cur + getEstimate(n));
+        }
+        long ret = 0L;
+        for (Long l : loads) {
+            ret = Math.max(ret, l);
+        }
+        return ret;
+    }
+    
+    private String getOwner(Node n) {
+        NodeID nid = (NodeID) n.appData;
+        if (nid.ownerObject == null) {
+            return null;
+        }
+        return nid.ownerObject.toString();
+    }
+    
+    private Map<String,Long> getOwnerCounts() {
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(VOSpaceNodePersistence.DATASOURCE_NAME);
+            String sql = "SELECT ownerID, count(*) FROM Node GROUP BY ownerID";
+            log.debug("SQL: " + sql);
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            SourceThrottle.get().query();
+            Map<String,Long> ret = jdbc.query(sql, new OwnerCountExtractor());
+            SourceThrottle.get().rows(ret.size());
+            return ret;
+        } catch (NamingException ex) {
+            throw new RuntimeException("failed to find " + VOSpaceNodePersistence.DATASOURCE_NAME + " via JNDI");
+        }
+    }
+    
+    private static class OwnerCountExtractor implements ResultSetExtractor<Map<String,Long>> {
+        @Override
+        public Map<String, Long> extractData(ResultSet rs) throws SQLException, DataAccessException {
+            Map<String,Long> ret = new HashMap<>();
+            while (rs.next()) {
+                Object owner = rs.getObject(1);
+                long num = rs.getLong(2);
+                if (owner != null) {
+                    ret.put(owner.toString(), num);
+                }
+            }
+            return ret;
+        }
+    }
+}
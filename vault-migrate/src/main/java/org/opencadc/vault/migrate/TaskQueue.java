@@ -0,0 +1,201 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Queue of migrate jobs shared by the worker threads. This tracks the number of
+ * busy workers so that a running job can hand off part of its work (work stealing)
+ * when other workers would otherwise be idle. Jobs report completion so the caller
+ * can wait for all submitted jobs (including jobs submitted by other jobs) to finish.
+ * 
+ * @author pdowler
+ */
+public class TaskQueue {
+    private static final Logger log = Logger.getLogger(TaskQueue.class);
+
+    private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final AtomicInteger busy = new AtomicInteger();
+    private final AtomicInteger reserved = new AtomicInteger(); // idle workers promised a job
+    private final int threads;
+    
+    // guarded by this
+    private int pending = 0;
+    private int numSucceeded = 0;
+    private final List<String> failed = new ArrayList<>();
+    
+    public TaskQueue(int threads) {
+        this.threads = threads;
+    }
+
+    LinkedBlockingQueue<Runnable> getQueue() {
+        return queue;
+    }
+    
+    public void submit(Runnable job) throws InterruptedException {
+        synchronized (this) {
+            pending++;
+        }
+        queue.put(job);
+    }
+    
+    public int size() {
+        return queue.size();
+    }
+    
+    /**
+     * Check if there is a worker thread that would not have a job to run. This is 
+     * a hint: concurrent callers may all see the same idle worker.
+     * 
+     * @return true if a new job would be picked up by an idle worker
+     */
+    public boolean hasIdleWorker() {
+        return busy.get() + queue.size() + reserved.get() < threads;
+    }
+    
+    /**
+     * Reserve an idle worker for a job that will be submitted by another thread
+     * (sharded mode: a work unit is registered and then claimed by the main loop) 
+     * and wake up that thread. The worker no longer counts as idle until clearReserved
+     * is called, so one idle worker causes at most one split.
+     */
+    public synchronized void reserve() {
+        reserved.incrementAndGet();
+        notifyAll();
+    }
+    
+    /**
+     * Clear reservations: called by the thread that claims and submits jobs.
+     */
+    public void clearReserved() {
+        reserved.set(0);
+    }
+    
+    void started() {
+        int n = busy.incrementAndGet();
+        log.debug("started: busy=" + n);
+    }
+    
+    /**
+     * Job completion.
+     * 
+     * @param name job name for the summary
+     * @param success true if the job completed successfully
+     */
+    void finished(String name, boolean success) {
+        int n = busy.decrementAndGet();
+        log.debug("finished: " + name + " success=" + success + " busy=" + n);
+        synchronized (this) {
+            if (success) {
+                numSucceeded++;
+            } else {
+                failed.add(name);
+            }
+            pending--;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Wait until all submitted jobs have finished.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void await() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+    
+    /**
+     * Wait until a job finishes, a worker is reserved, or the timeout expires.
+     * 
+     * @param timeout max time to wait in milliseconds
+     * @return true if no jobs are pending
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        if (pending > 0) {
+            wait(timeout);
+        }
+        return pending == 0;
+    }
+    
+    public synchronized int getNumSucceeded() {
+        return numSucceeded;
+    }
+    
+    public synchronized List<String> getFailed() {
+        return new ArrayList<>(failed);
+    }
+}
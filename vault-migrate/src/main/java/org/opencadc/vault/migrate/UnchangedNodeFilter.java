@@ -0,0 +1,216 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.date.DateUtil;
+import ca.nrc.cadc.db.DBUtil;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import org.opencadc.vospace.Node;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * Remove nodes that are already identical in the destination from a batch of converted
+ * nodes. The destination id, lastModified, and metaChecksum of the nodes in the batch 
+ * are fetched with one query per parent container; a node is unchanged if it exists under 
+ * the same parent with the same lastModified and the same metadata checksum as the 
+ * converted node would have when written.
+ * 
+ * @author pdowler
+ */
+public class UnchangedNodeFilter {
+    private static final Logger log = Logger.getLogger(UnchangedNodeFilter.class);
+
+    private final JdbcTemplate jdbc;
+    private final MessageDigest digest;
+    private final Calendar utc = Calendar.getInstance(DateUtil.UTC);
+    
+    public UnchangedNodeFilter() {
+        try {
+            DataSource ds = DBUtil.findJNDIDataSource(Main.DEST_DATASOURCE);
+            this.jdbc = new JdbcTemplate(ds);
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NamingException ex) {
+            throw new RuntimeException("CONFIG: failed to find datasource " + Main.DEST_DATASOURCE, ex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("BUG: MD5 not available", ex);
+        }
+    }
+    
+    /**
+     * Get the nodes in the batch that are new or differ from the destination.
+     * 
+     * @param nodes batch of converted nodes
+     * @return nodes to write, in the original order
+     */
+    public List<Node> changed(List<Node> nodes) {
+        Map<UUID, List<Node>> byParent = new LinkedHashMap<>();
+        for (Node n : nodes) {
+            List<Node> siblings = byParent.get(n.parentID);
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                byParent.put(n.parentID, siblings);
+            }
+            siblings.add(n);
+        }
+        
+        Map<UUID, Existing> existing = new HashMap<>();
+        for (Map.Entry<UUID, List<Node>> me : byParent.entrySet()) {
+            ExistingStatement es = new ExistingStatement(me.getKey(), me.getValue());
+            jdbc.query(es, es);
+            existing.putAll(es.found);
+        }
+        
+        List<Node> ret = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            Existing e = existing.get(n.getID());
+            if (e == null || !isUnchanged(n, e)) {
+                ret.add(n);
+            }
+        }
+        log.debug("changed: " + ret.size() + " of " + nodes.size());
+        return ret;
+    }
+    
+    // same lastModified and metaChecksum as NodeDAO would persist for the node
+    private boolean isUnchanged(Node n, Existing e) {
+        if (n.getLastModified() == null || e.lastModified == null 
+                || n.getLastModified().getTime() != e.lastModified.getTime()) {
+            return false;
+        }
+        digest.reset();
+        URI mcs = n.computeMetaChecksum(digest);
+        return mcs.toASCIIString().equals(e.metaChecksum);
+    }
+    
+    private static class Existing {
+        Timestamp lastModified;
+        String metaChecksum;
+    }
+    
+    private class ExistingStatement implements PreparedStatementCreator, RowCallbackHandler {
+        private final UUID parentID;
+        private final List<Node> nodes;
+        final Map<UUID, Existing> found = new HashMap<>();
+
+        ExistingStatement(UUID parentID, List<Node> nodes) {
+            this.parentID = parentID;
+            this.nodes = nodes;
+        }
+        
+        @Override
+        public PreparedStatement createPreparedStatement(Connection conn) throws SQLException {
+            StringBuilder sb = new StringBuilder();
+            sb.append("SELECT id, lastModified, metaChecksum FROM ").append(Main.DEST_SCHEMA).append(".Node");
+            sb.append(" WHERE parentID = ? AND id IN (");
+            for (int i = 0; i < nodes.size(); i++) {
+                if (i > 0) {
+                    sb.append(",");
+                }
+                sb.append("?");
+            }
+            sb.append(")");
+            String sql = sb.toString();
+            log.debug("SQL: " + sql);
+            PreparedStatement prep = conn.prepareStatement(sql);
+            int col = 1;
+            prep.setObject(col++, parentID);
+            for (Node n : nodes) {
+                prep.setObject(col++, n.getID());
+            }
+            return prep;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            Existing e = new Existing();
+            UUID id = (UUID) rs.getObject(1);
+            e.lastModified = rs.getTimestamp(2, utc);
+            e.metaChecksum = rs.getString(3);
+            found.put(id, e);
+        }
+    }
+}
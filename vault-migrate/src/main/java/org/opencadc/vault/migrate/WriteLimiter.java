@@ -0,0 +1,212 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+package org.opencadc.vault.migrate;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adaptive limit on concurrent destination writes (AIMD). Latency is tracked per
+ * node so batches of different size are comparable. While the short term average
+ * stays within a tolerance of the baseline latency and writers are waiting for a 
+ * permit, the limit grows by one per window of completed writes; when
+ * latency rises above the tolerance or a write fails, the limit is cut by a factor
+ * (at most once per window so one slow period does not collapse the limit). The 
+ * baseline is the best average latency of a window over the last few windows, so a
+ * single fast write does not set it and it follows the destination as it changes 
+ * (table growth, other load) instead of the best ever observed.
+ * 
+ * @author pdowler
+ */
+public class WriteLimiter {
+    private static final Logger log = Logger.getLogger(WriteLimiter.class);
+
+    private static final double TOLERANCE = 2.0; // latency increase that triggers back off
+    private static final double DECREASE = 0.7;
+    private static final double SMOOTHING = 0.2; // weight of new sample in short term average
+    private static final int BASELINE_WINDOWS = 20; // recent windows for the baseline
+    
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private boolean waiting = false;
+    
+    private double avg = 0.0; // nanos per node, short term
+    private double baseline = Double.MAX_VALUE; // nanos per node, best recent window average
+    private final double[] windowAvgs = new double[BASELINE_WINDOWS];
+    private int numWindows = 0;
+    private double windowNanos = 0.0;
+    private long windowNodes = 0L;
+    private int windowWrites = 0;
+    private int sinceChange = 0;
+    private int numIncrease = 0;
+    private int numDecrease = 0;
+    
+    /**
+     * @param minLimit minimum concurrent writes
+     * @param initLimit initial concurrent writes
+     * @param maxLimit maximum concurrent writes (destination pool size)
+     */
+    public WriteLimiter(int minLimit, int initLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initLimit, maxLimit));
+    }
+    
+    /**
+     * Wait for a write permit.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            waiting = true;
+            wait();
+        }
+        inFlight++;
+    }
+    
+    /**
+     * Release a write permit and update the limit.
+     * 
+     * @param nanos duration of the write
+     * @param nodes number of nodes written
+     * @param success true if the write succeeded
+     */
+    public synchronized void release(long nanos, int nodes, boolean success) {
+        inFlight--;
+        sinceChange++;
+        int window = Math.max(1, (int) limit);
+        if (!success) {
+            decrease("failed write");
+        } else if (nodes > 0) {
+            double sample = ((double) nanos) / nodes;
+            avg = (avg == 0.0 ? sample : avg + SMOOTHING * (sample - avg));
+            updateBaseline(nanos, nodes, window);
+            if (avg > TOLERANCE * baseline) {
+                if (sinceChange >= window) {
+                    decrease(String.format("latency %.3f ms/node baseline %.3f ms/node", avg / 1.0e6, baseline / 1.0e6));
+                }
+            } else if (waiting && limit < maxLimit) {
+                // additive increase: +1 per window of completed writes
+                limit = Math.min(maxLimit, limit + 1.0 / window);
+                if ((int) limit > window) {
+                    numIncrease++;
+                    sinceChange = 0;
+                    log.debug("increase limit: " + (int) limit);
+                }
+            }
+        }
+        waiting = false;
+        notifyAll();
+    }
+    
+    // close a window every window writes and use the min of recent window averages
+    private void updateBaseline(long nanos, int nodes, int window) {
+        windowNanos += nanos;
+        windowNodes += nodes;
+        windowWrites++;
+        if (windowWrites < window) {
+            return;
+        }
+        windowAvgs[numWindows % BASELINE_WINDOWS] = windowNanos / windowNodes;
+        numWindows++;
+        windowNanos = 0.0;
+        windowNodes = 0L;
+        windowWrites = 0;
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < Math.min(numWindows, BASELINE_WINDOWS); i++) {
+            min = Math.min(min, windowAvgs[i]);
+        }
+        baseline = min;
+    }
+    
+    private void decrease(String reason) {
+        int prev = (int) limit;
+        limit = Math.max(minLimit, limit * DECREASE);
+        sinceChange = 0;
+        if ((int) limit < prev) {
+            numDecrease++;
+            log.info("decrease write limit: " + prev + " -> " + (int) limit + " " + reason);
+        }
+    }
+    
+    /**
+     * @return current limit on concurrent writes
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("limit: %d (%d-%d) increase: %d decrease: %d latency: %.3f ms/node baseline: %.3f ms/node", 
+                (int) limit, minLimit, maxLimit, numIncrease, numDecrease, avg / 1.0e6, 
+                (baseline == Double.MAX_VALUE ? 0.0 : baseline / 1.0e6));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencadc.gms.GroupURI;
+import org.opencadc.vospace.NodeProperty;
+
+/**
+ *
+ * @author pdowler
+ */
+public class BulkNodeLoaderTest {
+    private static final Logger log = Logger.getLogger(BulkNodeLoaderTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    public BulkNodeLoaderTest() { 
+    }
+    
+    private static String csv(Object val) {
+        StringBuilder sb = new StringBuilder();
+        BulkNodeLoader.appendValue(sb, val);
+        return sb.toString();
+    }
+    
+    @Test
+    public void testAppendValue() {
+        try {
+            Assert.assertEquals(",", csv(null));
+            Assert.assertEquals("\"\",", csv(""));
+            Assert.assertEquals("\"foo\",", csv("foo"));
+            Assert.assertEquals("\"123\",", csv(123L));
+            Assert.assertEquals("\"true\",", csv(Boolean.TRUE));
+            Assert.assertEquals("\"a,b\",", csv("a,b"));
+            Assert.assertEquals("\"say \"\"hi\"\"\",", csv("say \"hi\""));
+            Assert.assertEquals("\"\"\"\",", csv("\""));
+            Assert.assertEquals("\"line1\nline2\r\n\",", csv("line1\nline2\r\n"));
+            Assert.assertEquals("\"tab\there\",", csv("tab\there"));
+            // backslash is not special in CSV format
+            Assert.assertEquals("\"c:\\dir\\\",", csv("c:\\dir\\"));
+            
+            StringBuilder sb = new StringBuilder();
+            BulkNodeLoader.appendValue(sb, "a");
+            BulkNodeLoader.appendValue(sb, null);
+            BulkNodeLoader.appendValue(sb, "b\"");
+            Assert.assertEquals("\"a\",,\"b\"\"\",", sb.toString());
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testGroupList() {
+        try {
+            Set<GroupURI> groups = new LinkedHashSet<>();
+            Assert.assertNull(BulkNodeLoader.toGroupList(groups));
+            
+            groups.add(new GroupURI(URI.create("ivo://cadc.nrc.ca/gms?g1")));
+            Assert.assertEquals("ivo://cadc.nrc.ca/gms?g1", BulkNodeLoader.toGroupList(groups));
+            
+            groups.add(new GroupURI(URI.create("ivo://cadc.nrc.ca/gms?g2")));
+            Assert.assertEquals("ivo://cadc.nrc.ca/gms?g1 ivo://cadc.nrc.ca/gms?g2", BulkNodeLoader.toGroupList(groups));
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testArrayLiteral() {
+        try {
+            Set<NodeProperty> props = new LinkedHashSet<>();
+            Assert.assertNull(BulkNodeLoader.toArrayLiteral(props));
+            
+            props.add(new NodeProperty(URI.create("ivo://ivoa.net/vospace/core#title"), "plain"));
+            Assert.assertEquals("{{\"ivo://ivoa.net/vospace/core#title\",\"plain\"}}", BulkNodeLoader.toArrayLiteral(props));
+            
+            props.add(new NodeProperty(URI.create("custom:quote"), "say \"hi\", {now}"));
+            props.add(new NodeProperty(URI.create("custom:backslash"), "c:\\dir"));
+            props.add(new NodeProperty(URI.create("custom:empty"), ""));
+            props.add(new NodeProperty(URI.create("custom:null"), null));
+            String expected = "{{\"ivo://ivoa.net/vospace/core#title\",\"plain\"},"
+                    + "{\"custom:quote\",\"say \\\"hi\\\", {now}\"},"
+                    + "{\"custom:backslash\",\"c:\\\\dir\"},"
+                    + "{\"custom:empty\",\"\"},"
+                    + "{\"custom:null\",NULL}}";
+            String actual = BulkNodeLoader.toArrayLiteral(props);
+            log.info("array literal: " + actual);
+            Assert.assertEquals(expected, actual);
+            
+            // the literal is itself a CSV field: quotes doubled, backslashes kept
+            String field = csv(actual);
+            Assert.assertTrue(field.contains("\"\"say \\\"\"hi\\\"\", {now}\"\""));
+            Assert.assertTrue(field.contains("c:\\\\dir"));
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
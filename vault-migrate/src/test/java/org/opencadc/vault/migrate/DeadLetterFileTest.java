@@ -0,0 +1,184 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class DeadLetterFileTest {
+    private static final Logger log = Logger.getLogger(DeadLetterFileTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    public DeadLetterFileTest() { 
+    }
+    
+    private static List<String> lines(File f) throws IOException {
+        List<String> ret = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line = r.readLine();
+            while (line != null) {
+                ret.add(line);
+                line = r.readLine();
+            }
+        }
+        return ret;
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        try {
+            File f = File.createTempFile("dead-letter-", ".txt");
+            f.delete();
+            f.deleteOnExit();
+            
+            URI u1 = URI.create("vos://cadc.nrc.ca~vault/foo/bar");
+            URI u2 = URI.create("vos://cadc.nrc.ca~vault/foo/with%20space");
+            URI u3 = URI.create("vos://cadc.nrc.ca~vault/baz");
+            
+            DeadLetterFile dlf = new DeadLetterFile(f);
+            Assert.assertEquals(0, dlf.getCount());
+            Assert.assertFalse(f.exists());
+            
+            dlf.add(u1, new IllegalArgumentException("invalid\nmulti-line\tmessage"));
+            dlf.add(u2, new RuntimeException());
+            dlf.add(u1, new IllegalStateException("second failure"));
+            Assert.assertEquals(3, dlf.getCount());
+            dlf.close();
+            
+            List<String> lines = lines(f);
+            Assert.assertEquals(3, lines.size());
+            Assert.assertEquals(u1.toASCIIString() + "\tjava.lang.IllegalArgumentException: invalid multi-line message", lines.get(0));
+            Assert.assertEquals(u2.toASCIIString() + "\tjava.lang.RuntimeException: null", lines.get(1));
+            
+            List<URI> uris = DeadLetterFile.read(f);
+            Assert.assertEquals(2, uris.size());
+            Assert.assertEquals(u1, uris.get(0));
+            Assert.assertEquals(u2, uris.get(1));
+            
+            // a later run appends
+            dlf = new DeadLetterFile(f);
+            dlf.add(u3, new RuntimeException("retry failed"));
+            dlf.add(u2, new RuntimeException("retry failed"));
+            Assert.assertEquals(2, dlf.getCount());
+            dlf.close();
+            
+            Assert.assertEquals(5, lines(f).size());
+            uris = DeadLetterFile.read(f);
+            Assert.assertEquals(3, uris.size());
+            Assert.assertEquals(u1, uris.get(0));
+            Assert.assertEquals(u2, uris.get(1));
+            Assert.assertEquals(u3, uris.get(2));
+            
+            f.delete();
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testReadIgnoresBlankLines() {
+        try {
+            File f = File.createTempFile("dead-letter-", ".txt");
+            f.deleteOnExit();
+            try (PrintWriter w = new PrintWriter(f)) {
+                w.println("vos://cadc.nrc.ca~vault/a");
+                w.println();
+                w.println("  ");
+                w.println("vos://cadc.nrc.ca~vault/b\tjava.lang.RuntimeException: oops");
+            }
+            List<URI> uris = DeadLetterFile.read(f);
+            Assert.assertEquals(2, uris.size());
+            Assert.assertEquals(URI.create("vos://cadc.nrc.ca~vault/a"), uris.get(0));
+            Assert.assertEquals(URI.create("vos://cadc.nrc.ca~vault/b"), uris.get(1));
+            f.delete();
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
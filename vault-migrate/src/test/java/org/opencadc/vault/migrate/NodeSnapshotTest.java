@@ -0,0 +1,241 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import ca.nrc.cadc.vos.ContainerNode;
+import ca.nrc.cadc.vos.DataNode;
+import ca.nrc.cadc.vos.LinkNode;
+import ca.nrc.cadc.vos.Node;
+import ca.nrc.cadc.vos.NodeProperty;
+import ca.nrc.cadc.vos.VOSURI;
+import ca.nrc.cadc.vos.server.NodeID;
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class NodeSnapshotTest {
+    private static final Logger log = Logger.getLogger(NodeSnapshotTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    private static final String BASE = "vos://cadc.nrc.ca~vault";
+    
+    public NodeSnapshotTest() { 
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        try {
+            ContainerNode top = container(null, "/top", 1L);
+            ContainerNode a = container(top, "/top/a", 10L);
+            a.setPublic(true);
+            ((NodeID) a.appData).ownerObject = 123;
+            ContainerNode b = container(top, "/top/b", 20L);
+            ((NodeID) b.appData).ownerObject = 456L;
+            
+            List<Node> expected = new ArrayList<>();
+            expected.add(a);
+            expected.add(b);
+            
+            DataNode d1 = new DataNode(new VOSURI(new URI(BASE + "/top/a/data1")));
+            d1.appData = nodeID(11L, "owner-dn", "ad:vault/data1");
+            d1.setLocked(true);
+            d1.getProperties().add(new NodeProperty("ivo://ivoa.net/vospace/core#length", "1024"));
+            d1.getProperties().add(new NodeProperty("ivo://ivoa.net/vospace/core#type", "text/plain"));
+            d1.setParent(a);
+            expected.add(d1);
+            
+            LinkNode l1 = new LinkNode(new VOSURI(new URI(BASE + "/top/a/link1")), new URI(BASE + "/top/b/data2"));
+            l1.appData = nodeID(12L, null, null); // null owner and storageID
+            l1.setParent(a);
+            expected.add(l1);
+            
+            // parent changes within the chunk
+            DataNode d2 = new DataNode(new VOSURI(new URI(BASE + "/top/b/data2")));
+            d2.appData = nodeID(21L, 456L, null);
+            d2.setPublic(true);
+            d2.setParent(b);
+            expected.add(d2);
+            
+            ContainerNode c = container(b, "/top/b/sub", 22L);
+            c.getProperties().add(new NodeProperty("ivo://ivoa.net/vospace/core#groupread", "ivo://cadc.nrc.ca/gms?g1"));
+            expected.add(c);
+            
+            // back to a previous parent
+            DataNode d3 = new DataNode(new VOSURI(new URI(BASE + "/top/a/data3")));
+            d3.appData = nodeID(13L, 123, "ad:vault/data3");
+            d3.setParent(a);
+            expected.add(d3);
+            
+            File f = File.createTempFile("NodeSnapshotTest", ".snap");
+            f.deleteOnExit();
+            try (NodeSnapshot.Writer w = NodeSnapshot.create(f, 4)) {
+                w.startSection("/top");
+                for (Node n : expected) {
+                    w.add(n);
+                }
+                w.endSection();
+                w.startSection("/empty");
+                w.endSection();
+            }
+            
+            try (NodeSnapshot snap = NodeSnapshot.open(f)) {
+                List<NodeSnapshot.Section> sections = snap.getSections();
+                Assert.assertEquals(2, sections.size());
+                NodeSnapshot.Section s = sections.get(0);
+                Assert.assertEquals("/top", s.getPath());
+                Assert.assertEquals(expected.size(), s.getNumNodes());
+                Assert.assertEquals(2, s.getChunks().length);
+                NodeSnapshot.Section empty = sections.get(1);
+                Assert.assertEquals("/empty", empty.getPath());
+                Assert.assertEquals(0L, empty.getNumNodes());
+                Assert.assertEquals(0, empty.getChunks().length);
+                
+                List<Node> actual = new ArrayList<>();
+                for (long offset : s.getChunks()) {
+                    actual.addAll(snap.readChunk(offset));
+                }
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    compare(expected.get(i), actual.get(i));
+                }
+                
+                // siblings in a chunk share one parent placeholder until the parent changes
+                Assert.assertSame(actual.get(0).getParent(), actual.get(1).getParent());
+                Assert.assertNotSame(actual.get(1).getParent(), actual.get(2).getParent());
+                Assert.assertSame(actual.get(2).getParent(), actual.get(3).getParent());
+                Assert.assertSame(actual.get(4).getParent(), actual.get(5).getParent());
+                Assert.assertNotSame(actual.get(5).getParent(), actual.get(6).getParent());
+            }
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    private void compare(Node expected, Node actual) {
+        log.debug("compare: " + expected.getUri().getURI());
+        Assert.assertEquals(expected.getClass(), actual.getClass());
+        Assert.assertEquals(expected.getUri().getURI(), actual.getUri().getURI());
+        Assert.assertEquals(expected.isPublic(), actual.isPublic());
+        Assert.assertEquals(expected.isLocked(), actual.isLocked());
+        
+        NodeID enid = (NodeID) expected.appData;
+        NodeID anid = (NodeID) actual.appData;
+        Assert.assertEquals(enid.id, anid.id);
+        Assert.assertEquals(enid.ownerObject, anid.ownerObject);
+        Assert.assertEquals(enid.storageID, anid.storageID);
+        
+        if (expected instanceof LinkNode) {
+            Assert.assertEquals(((LinkNode) expected).getTarget(), ((LinkNode) actual).getTarget());
+        }
+        
+        List<NodeProperty> eprops = expected.getProperties();
+        List<NodeProperty> aprops = actual.getProperties();
+        Assert.assertEquals(eprops.size(), aprops.size());
+        for (int i = 0; i < eprops.size(); i++) {
+            Assert.assertEquals(eprops.get(i).getPropertyURI(), aprops.get(i).getPropertyURI());
+            Assert.assertEquals(eprops.get(i).getPropertyValue(), aprops.get(i).getPropertyValue());
+        }
+        
+        NodeID epid = (NodeID) expected.getParent().appData;
+        NodeID apid = (NodeID) actual.getParent().appData;
+        Assert.assertEquals(epid.id, apid.id);
+        Assert.assertEquals(expected.getParent().getUri().getURI(), actual.getParent().getUri().getURI());
+    }
+    
+    private static ContainerNode container(ContainerNode parent, String path, Long id) throws Exception {
+        ContainerNode ret = new ContainerNode(new VOSURI(new URI(BASE + path)));
+        ret.appData = nodeID(id, null, null);
+        if (parent != null) {
+            ret.setParent(parent);
+        }
+        return ret;
+    }
+    
+    private static NodeID nodeID(Long id, Object owner, String storageID) {
+        NodeID ret = new NodeID();
+        ret.id = id;
+        ret.ownerObject = owner;
+        ret.storageID = storageID;
+        return ret;
+    }
+}
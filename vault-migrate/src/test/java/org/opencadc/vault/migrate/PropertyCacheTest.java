@@ -0,0 +1,198 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import ca.nrc.cadc.vos.NodeProperty;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class PropertyCacheTest {
+    private static final Logger log = Logger.getLogger(PropertyCacheTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    private static final String CORE = "ivo://ivoa.net/vospace/core#";
+    
+    public PropertyCacheTest() { 
+    }
+    
+    @Test
+    public void testAddGet() {
+        try {
+            PropertyCache pc = new PropertyCache();
+            pc.add(1L, CORE + "a", "one");
+            pc.add(1L, CORE + "b", null);
+            pc.add(3L, CORE + "a", "");
+            pc.add(3L, CORE + "c", "ünïcödé");
+            
+            Assert.assertEquals(2, pc.getNumNodes());
+            Assert.assertEquals(4, pc.getNumProperties());
+            Assert.assertEquals(3, pc.getNumURIs());
+            Assert.assertNull(pc.get(2L));
+            List<NodeProperty> props = pc.get(1L);
+            Assert.assertEquals(2, props.size());
+            Assert.assertEquals(CORE + "a", props.get(0).getPropertyURI());
+            Assert.assertEquals("one", props.get(0).getPropertyValue());
+            Assert.assertEquals(CORE + "b", props.get(1).getPropertyURI());
+            Assert.assertNull(props.get(1).getPropertyValue());
+            props = pc.get(3L);
+            Assert.assertEquals("", props.get(0).getPropertyValue());
+            Assert.assertEquals("ünïcödé", props.get(1).getPropertyValue());
+            
+            try {
+                pc.add(2L, CORE + "a", "out of order");
+                Assert.fail("expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                log.debug("caught expected: " + expected);
+            }
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testMerge() {
+        try {
+            // parts with different URI dictionaries, null values, multiple value pages, and an empty part
+            Map<Long, List<NodeProperty>> expected = new HashMap<>();
+            List<PropertyCache> parts = new ArrayList<>();
+            char[] big = new char[700 * 1024];
+            Arrays.fill(big, 'v');
+            long id = 1L;
+            for (int p = 0; p < 4; p++) {
+                PropertyCache pc = new PropertyCache();
+                if (p != 2) {
+                    for (int n = 0; n < 10; n++) {
+                        for (int i = 0; i <= n % 3; i++) {
+                            String uri = CORE + "p" + ((p * 3 + n + i) % 5);
+                            String val = ((n + i) % 4 == 0 ? null : "part" + p + "-node" + id + "-" + i);
+                            if (n == 5 && i == 0) {
+                                val = new String(big) + id; // new page
+                            }
+                            pc.add(id, uri, val);
+                        }
+                        id += 1 + n % 2;
+                    }
+                }
+                pc.trim();
+                for (long i = 0L; i <= id; i++) {
+                    List<NodeProperty> props = pc.get(i);
+                    if (props != null) {
+                        expected.put(i, props);
+                    }
+                }
+                parts.add(pc);
+            }
+            
+            PropertyCache merged = PropertyCache.merge(parts);
+            Assert.assertEquals(expected.size(), merged.getNumNodes());
+            for (long i = 0L; i <= id; i++) {
+                PropertySnapshotTest.compare(i, expected.get(i), merged.get(i));
+            }
+            Assert.assertEquals(5, merged.getNumURIs());
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testMergeOutOfOrder() {
+        try {
+            PropertyCache p1 = new PropertyCache();
+            p1.add(10L, CORE + "a", "x");
+            PropertyCache p2 = new PropertyCache();
+            p2.add(5L, CORE + "a", "y");
+            try {
+                PropertyCache.merge(Arrays.asList(p1, p2));
+                Assert.fail("expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+                log.debug("caught expected: " + expected);
+            }
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
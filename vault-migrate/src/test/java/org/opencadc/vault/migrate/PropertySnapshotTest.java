@@ -0,0 +1,203 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import ca.nrc.cadc.vos.NodeProperty;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class PropertySnapshotTest {
+    private static final Logger log = Logger.getLogger(PropertySnapshotTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    private static final String CORE = "ivo://ivoa.net/vospace/core#";
+    
+    public PropertySnapshotTest() { 
+    }
+    
+    // nodes 1..20 with 0-4 properties each: null values, multi-byte UTF-8, different lengths
+    static PropertyCache createCache() {
+        PropertyCache ret = new PropertyCache();
+        for (long id = 1L; id <= 20L; id++) {
+            int num = (int) (id % 5);
+            for (int p = 0; p < num; p++) {
+                String uri = CORE + "prop" + ((id + p) % 7);
+                String val = null;
+                if ((id + p) % 3 != 0) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 0; i <= id + p; i++) {
+                        sb.append(i % 2 == 0 ? 'x' : 'é');
+                    }
+                    val = sb.toString();
+                }
+                ret.add(id, uri, val);
+            }
+        }
+        return ret;
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        try {
+            PropertyCache cache = createCache();
+            cache.trim(); // small file for small windows
+            Date watermark = new Date();
+            File f = File.createTempFile("PropertySnapshotTest", ".snap");
+            f.deleteOnExit();
+            cache.writeSnapshot(f, watermark);
+            
+            // default windows and 8-byte windows so values straddle windows
+            for (int bits : new int[] { 30, 3, 4, 5 }) {
+                log.info("window bits: " + bits);
+                PropertySnapshot snap = PropertySnapshot.open(f, bits);
+                Assert.assertEquals(watermark, snap.getWatermark());
+                for (long id = 0L; id <= 21L; id++) {
+                    compare(id, cache.get(id), snap.get(id));
+                }
+            }
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testDelta() {
+        try {
+            PropertyCache cache = createCache();
+            cache.trim(); // small file for small windows
+            File f = File.createTempFile("PropertySnapshotTest", ".snap");
+            f.deleteOnExit();
+            cache.writeSnapshot(f, new Date());
+            
+            PropertyCache delta = new PropertyCache();
+            delta.add(7L, CORE + "changed", "new value");
+            delta.add(7L, CORE + "empty", null);
+            delta.add(30L, CORE + "added", "new node");
+            // 4 changed and all properties removed: not in the delta
+            long[] changed = new long[] { 30L, 4L, 7L };
+            
+            PropertySnapshot snap = PropertySnapshot.open(f, 4);
+            snap.setDelta(changed, delta);
+            for (long id = 0L; id <= 21L; id++) {
+                if (id == 4L || id == 7L) {
+                    continue;
+                }
+                compare(id, cache.get(id), snap.get(id));
+            }
+            Assert.assertNotNull(cache.get(4L));
+            Assert.assertNull(snap.get(4L));
+            compare(7L, delta.get(7L), snap.get(7L));
+            compare(30L, delta.get(30L), snap.get(30L));
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testEmpty() {
+        try {
+            File f = File.createTempFile("PropertySnapshotTest", ".snap");
+            f.deleteOnExit();
+            new PropertyCache().writeSnapshot(f, new Date());
+            PropertySnapshot snap = PropertySnapshot.open(f);
+            Assert.assertNull(snap.get(1L));
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    static void compare(long id, List<NodeProperty> expected, List<NodeProperty> actual) {
+        if (expected == null) {
+            Assert.assertNull("node " + id, actual);
+            return;
+        }
+        Assert.assertNotNull("node " + id, actual);
+        Assert.assertEquals("node " + id, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("node " + id, expected.get(i).getPropertyURI(), actual.get(i).getPropertyURI());
+            Assert.assertEquals("node " + id, expected.get(i).getPropertyValue(), actual.get(i).getPropertyValue());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class TaskQueueTest {
+    private static final Logger log = Logger.getLogger(TaskQueueTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    public TaskQueueTest() { 
+    }
+    
+    @Test
+    public void testIdleWorker() {
+        try {
+            TaskQueue tasks = new TaskQueue(2);
+            Assert.assertTrue(tasks.hasIdleWorker());
+            
+            tasks.submit(() -> { });
+            Assert.assertTrue(tasks.hasIdleWorker());
+            tasks.getQueue().take();
+            tasks.started();
+            Assert.assertTrue(tasks.hasIdleWorker());
+            
+            // one idle worker: one reservation
+            tasks.reserve();
+            Assert.assertFalse(tasks.hasIdleWorker());
+            tasks.clearReserved();
+            Assert.assertTrue(tasks.hasIdleWorker());
+            
+            tasks.submit(() -> { });
+            Assert.assertFalse(tasks.hasIdleWorker());
+            tasks.getQueue().take();
+            tasks.started();
+            Assert.assertFalse(tasks.hasIdleWorker());
+            
+            tasks.finished("a", true);
+            Assert.assertTrue(tasks.hasIdleWorker());
+            Assert.assertFalse(tasks.await(1L));
+            tasks.finished("b", false);
+            Assert.assertTrue(tasks.await(1L));
+            
+            Assert.assertEquals(1, tasks.getNumSucceeded());
+            Assert.assertEquals(1, tasks.getFailed().size());
+            Assert.assertEquals("b", tasks.getFailed().get(0));
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testReserveWakesWaiter() {
+        try {
+            TaskQueue tasks = new TaskQueue(1);
+            tasks.submit(() -> { });
+            
+            Thread t = new Thread(() -> {
+                try {
+                    Thread.sleep(100L);
+                } catch (InterruptedException ignore) {
+                    log.debug("interrupted");
+                }
+                tasks.reserve();
+            });
+            long start = System.currentTimeMillis();
+            t.start();
+            boolean done = tasks.await(10000L);
+            long dt = System.currentTimeMillis() - start;
+            t.join();
+            Assert.assertFalse(done);
+            Assert.assertTrue("woken by reserve: " + dt, dt < 5000L);
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}
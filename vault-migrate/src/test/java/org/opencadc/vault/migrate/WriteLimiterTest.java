@@ -0,0 +1,217 @@
+/*
+************************************************************************
+*******************  CANADIAN ASTRONOMY DATA CENTRE  *******************
+**************  CENTRE CANADIEN DE DONNÉES ASTRONOMIQUES  **************
+*
+*  (c) 2026.                            (c) 2026.
+*  Government of Canada                 Gouvernement du Canada
+*  National Research Council            Conseil national de recherches
+*  Ottawa, Canada, K1A 0R6              Ottawa, Canada, K1A 0R6
+*  All rights reserved                  Tous droits réservés
+*
+*  NRC disclaims any warranties,        Le CNRC dénie toute garantie
+*  expressed, implied, or               énoncée, implicite ou légale,
+*  statutory, of any kind with          de quelque nature que ce
+*  respect to the software,             soit, concernant le logiciel,
+*  including without limitation         y compris sans restriction
+*  any warranty of merchantability      toute garantie de valeur
+*  or fitness for a particular          marchande ou de pertinence
+*  purpose. NRC shall not be            pour un usage particulier.
+*  liable in any event for any          Le CNRC ne pourra en aucun cas
+*  damages, whether direct or           être tenu responsable de tout
+*  indirect, special or general,        dommage, direct ou indirect,
+*  consequential or incidental,         particulier ou général,
+*  arising from the use of the          accessoire ou fortuit, résultant
+*  software.  Neither the name          de l'utilisation du logiciel. Ni
+*  of the National Research             le nom du Conseil National de
+*  Council of Canada nor the            Recherches du Canada ni les noms
+*  names of its contributors may        de ses  participants ne peuvent
+*  be used to endorse or promote        être utilisés pour approuver ou
+*  products derived from this           promouvoir les produits dérivés
+*  software without specific prior      de ce logiciel sans autorisation
+*  written permission.                  préalable et particulière
+*                                       par écrit.
+*
+*  This file is part of the             Ce fichier fait partie du projet
+*  OpenCADC project.                    OpenCADC.
+*
+*  OpenCADC is free software:           OpenCADC est un logiciel libre ;
+*  you can redistribute it and/or       vous pouvez le redistribuer ou le
+*  modify it under the terms of         modifier suivant les termes de
+*  the GNU Affero General Public        la “GNU Affero General Public
+*  License as published by the          License” telle que publiée
+*  Free Software Foundation,            par la Free Software Foundation
+*  either version 3 of the              : soit la version 3 de cette
+*  License, or (at your option)         licence, soit (à votre gré)
+*  any later version.                   toute version ultérieure.
+*
+*  OpenCADC is distributed in the       OpenCADC est distribué
+*  hope that it will be useful,         dans l’espoir qu’il vous
+*  but WITHOUT ANY WARRANTY;            sera utile, mais SANS AUCUNE
+*  without even the implied             GARANTIE : sans même la garantie
+*  warranty of MERCHANTABILITY          implicite de COMMERCIALISABILITÉ
+*  or FITNESS FOR A PARTICULAR          ni d’ADÉQUATION À UN OBJECTIF
+*  PURPOSE.  See the GNU Affero         PARTICULIER. Consultez la Licence
+*  General Public License for           Générale Publique GNU Affero
+*  more details.                        pour plus de détails.
+*
+*  You should have received             Vous devriez avoir reçu une
+*  a copy of the GNU Affero             copie de la Licence Générale
+*  General Public License along         Publique GNU Affero avec
+*  with OpenCADC.  If not, see          OpenCADC ; si ce n’est
+*  <http://www.gnu.org/licenses/>.      pas le cas, consultez :
+*                                       <http://www.gnu.org/licenses/>.
+*
+************************************************************************
+*/
+
+
+package org.opencadc.vault.migrate;
+
+import ca.nrc.cadc.util.Log4jInit;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author pdowler
+ */
+public class WriteLimiterTest {
+    private static final Logger log = Logger.getLogger(WriteLimiterTest.class);
+
+    static {
+        Log4jInit.setLevel("org.opencadc.vault.migrate", Level.INFO);
+    }
+    
+    private static final long MS = 1000000L;
+    
+    public WriteLimiterTest() { 
+    }
+    
+    @Test
+    public void testInitialLimit() {
+        try {
+            Assert.assertEquals(4, new WriteLimiter(1, 4, 16).getLimit());
+            Assert.assertEquals(16, new WriteLimiter(1, 32, 16).getLimit());
+            Assert.assertEquals(2, new WriteLimiter(2, 1, 16).getLimit());
+            
+            // permits up to the initial limit are available immediately
+            WriteLimiter wl = new WriteLimiter(1, 4, 16);
+            for (int i = 0; i < 4; i++) {
+                wl.acquire();
+            }
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testDecreaseOnFailure() {
+        try {
+            WriteLimiter wl = new WriteLimiter(1, 8, 16);
+            int prev = wl.getLimit();
+            for (int i = 0; i < 10; i++) {
+                wl.acquire();
+                wl.release(MS, 100, false);
+                int cur = wl.getLimit();
+                Assert.assertTrue("no increase on failure", cur <= prev);
+                Assert.assertTrue("min limit", cur >= 1);
+                prev = cur;
+            }
+            Assert.assertEquals(1, wl.getLimit());
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    @Test
+    public void testDecreaseOnLatency() {
+        try {
+            WriteLimiter wl = new WriteLimiter(1, 4, 16);
+            // two windows at 1 ms/node sets the baseline
+            for (int i = 0; i < 8; i++) {
+                wl.acquire();
+                wl.release(100 * MS, 100, true);
+            }
+            Assert.assertEquals(4, wl.getLimit());
+            
+            // same latency per node with bigger batches: no change
+            wl.acquire();
+            wl.release(500 * MS, 500, true);
+            Assert.assertEquals(4, wl.getLimit());
+            
+            // 10x latency per node
+            wl.acquire();
+            wl.release(1000 * MS, 100, true);
+            Assert.assertEquals(2, wl.getLimit());
+            
+            // at most one decrease per window
+            wl.acquire();
+            wl.release(1000 * MS, 100, true);
+            Assert.assertEquals(2, wl.getLimit());
+            
+            for (int i = 0; i < 10; i++) {
+                wl.acquire();
+                wl.release(1000 * MS, 100, true);
+            }
+            Assert.assertEquals(1, wl.getLimit());
+            log.info(wl);
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+    
+    // start a writer and wait until it is blocked in acquire
+    private Thread startWaiter(final WriteLimiter wl) throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                wl.acquire();
+            } catch (InterruptedException ex) {
+                log.debug("interrupted");
+            }
+        });
+        t.start();
+        while (t.getState() != Thread.State.WAITING) {
+            Thread.sleep(10L);
+        }
+        return t;
+    }
+    
+    @Test
+    public void testIncreaseWhileWaiting() {
+        try {
+            WriteLimiter wl = new WriteLimiter(1, 2, 16);
+            wl.acquire();
+            wl.acquire();
+            
+            // writers waiting and steady latency: +1 per window (2 writes)
+            Thread t = startWaiter(wl);
+            wl.release(100 * MS, 100, true);
+            t.join(5000L);
+            Assert.assertFalse(t.isAlive());
+            Assert.assertEquals(2, wl.getLimit());
+            
+            t = startWaiter(wl);
+            wl.release(100 * MS, 100, true);
+            t.join(5000L);
+            Assert.assertFalse(t.isAlive());
+            Assert.assertEquals(3, wl.getLimit());
+            
+            // no waiting writers: no increase
+            wl.release(100 * MS, 100, true);
+            wl.release(100 * MS, 100, true);
+            wl.acquire();
+            wl.release(100 * MS, 100, true);
+            Assert.assertEquals(3, wl.getLimit());
+            log.info(wl);
+        } catch (Exception unexpected) {
+            log.error("unexpected exception", unexpected);
+            Assert.fail("unexpected exception: " + unexpected);
+        }
+    }
+}